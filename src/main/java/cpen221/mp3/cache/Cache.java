@@ -1,21 +1,51 @@
 package cpen221.mp3.cache;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 
 /**
  * Implements a cache which stores recently accessed objects so they can be accessed faster in the future.
  *
  * Abstraction Function:
- *      Cache is a HashMap mapping a generic object that extends the interface Cacheable
- *      to an array that takes the time that it was stored/refreshed and last accessed. It has a capacity and
- *      timeout value which determine, respectively, the maximum number of items that can be stored in the cache at
- *      once and after how long an item must be removed.
+ *      Cache is a map from the id of a generic object that extends the interface Cacheable
+ *      to a node holding that object, its weight and the time that it was stored/refreshed.
+ *      Every node is threaded onto the deadline queue, ordered from least recently refreshed
+ *      (writeHead.next) to most recently refreshed (writeHead.prev); since every object gets the
+ *      same timeout, this is also the order in which objects expire.
+ *      It has a capacity, maximumWeight and timeout value which determine, respectively, the maximum
+ *      number of items that can be stored in the cache at once, the maximum total weight of those items
+ *      as measured by weigher, and after how long an item must be removed. When either limit is
+ *      exceeded, policy chooses which items to evict.
+ *      Accesses made by get that have not yet been reported to policy wait in readBuffer.
+ *      Every object that leaves the cache, whether evicted, expired, replaced or rejected for
+ *      being too heavy, is passed to onRemoval.
  *
  * Representation Invariant:
- *      capacity and timeout values are greater than 0
- *      cache is not null and does not contain any null key-value sets
- *      for each o in cache.keySet(), cache.get(o) contains values that are greater than 0
+ *      capacity, maximumWeight and timeout values are greater than 0
+ *      cache, weigher, policy and onRemoval are not null and cache does not contain any null key-value sets
+ *      cache.size() <= capacity and totalWeight <= maximumWeight whenever lock is not held
+ *      totalWeight is the sum of the weights of the nodes in cache
+ *      for each id in cache.keySet(), cache.get(id).value.id().equals(id)
+ *          and cache.get(id).refreshed > 0
+ *      the ids known to policy are exactly cache.keySet()
+ *      the nodes reachable from writeHead are exactly the values of cache, each appearing once
+ *      refreshed is non-decreasing from writeHead.next to writeHead.prev
+ *
+ * Thread Safety:
+ *      the index is a ConcurrentHashMap, and the deadline queue and policy are only used while holding lock.
+ *      get never waits for lock: it reads the index directly, queues its access in readBuffer
+ *      and only applies pending accesses and expiries if the lock happens to be free.
+ *      Expiry is piggy-backed on whichever call holds the lock, and only touches the entries
+ *      at the front of the deadline queue that are actually due.
  */
 public class Cache<T extends Cacheable> {
 
@@ -27,7 +57,22 @@ public class Cache<T extends Cacheable> {
     public static final int DTIMEOUT = 3600;
     public int timeout;
 
-    public Map<T, Long[]> cache;
+    /* by default only the number of objects is limited */
+    public long maximumWeight;
+
+    /* the number of accesses that may wait to be applied; further accesses are dropped */
+    private static final int READ_BUFFER_SIZE = 128;
+
+    private final Map<String, Node<T>> cache;
+
+    /* sentinel of the circular deadline queue */
+    private final Node<T> writeHead = new Node<>(null, null, 0, 0);
+    private final Queue<Node<T>> readBuffer = new ArrayBlockingQueue<>(READ_BUFFER_SIZE);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ToLongFunction<? super T> weigher;
+    private final EvictionPolicy policy;
+    private final Consumer<? super T> onRemoval;
+    private long totalWeight;
 
     /**
      * Create a cache with a user-specified capacity and a timeout value.
@@ -35,12 +80,53 @@ public class Cache<T extends Cacheable> {
      * are removed from the cache.
      *
      * @param capacity the number of objects the cache can hold
-     * @param timeout  the duration an object should be in the cache before it times out
+     * @param timeout  the duration, in seconds, an object should be in the cache before it times out
      */
     public Cache(int capacity, int timeout) {
+        this(capacity, timeout, t -> { });
+    }
+
+    /**
+     * Create a cache with a user-specified capacity and a timeout value that reports
+     * every object leaving the cache, so resources held by the object can be released.
+     * onRemoval is called while the cache is locked and must not call back into the cache.
+     *
+     * @param capacity  the number of objects the cache can hold
+     * @param timeout   the duration, in seconds, an object should be in the cache before it times out
+     * @param onRemoval called with each object that is evicted, expires or is replaced
+     */
+    public Cache(int capacity, int timeout, Consumer<? super T> onRemoval) {
+        this(capacity, Long.MAX_VALUE, timeout, t -> 1, new LruPolicy(), onRemoval);
+    }
+
+    /**
+     * Create a cache whose size is limited by the total weight of its objects rather than
+     * their number, evicting the objects chosen by policy when that weight is exceeded.
+     * onRemoval is called while the cache is locked and must not call back into the cache.
+     *
+     * @param maximumWeight the total weight of the objects the cache can hold
+     * @param timeout       the duration, in seconds, an object should be in the cache before it times out
+     * @param weigher       gives the weight of an object, which must be positive and must not
+     *                      change while the object is in the cache
+     * @param policy        chooses the objects to evict; must not be used by any other cache
+     * @param onRemoval     called with each object that is evicted, expires, is replaced or is rejected
+     */
+    public Cache(long maximumWeight, int timeout, ToLongFunction<? super T> weigher,
+                 EvictionPolicy policy, Consumer<? super T> onRemoval) {
+        this(Integer.MAX_VALUE, maximumWeight, timeout, weigher, policy, onRemoval);
+    }
+
+    private Cache(int capacity, long maximumWeight, int timeout, ToLongFunction<? super T> weigher,
+                  EvictionPolicy policy, Consumer<? super T> onRemoval) {
         this.capacity = capacity;
+        this.maximumWeight = maximumWeight;
         this.timeout = timeout;
-        this.cache= new HashMap<>(capacity);
+        this.weigher = weigher;
+        this.policy = policy;
+        this.onRemoval = onRemoval;
+        this.cache = new ConcurrentHashMap<>();
+        writeHead.writePrev = writeHead;
+        writeHead.writeNext = writeHead;
     }
 
     /**
@@ -48,30 +134,50 @@ public class Cache<T extends Cacheable> {
      */
     public Cache() {
         this(DSIZE, DTIMEOUT);
-        this.cache = new HashMap<>(DSIZE);
     }
 
     /**
      * Add a value to the cache.
-     * If the cache is full then remove the least recently accessed object to
-     *    make room for the new object.
+     * If the cache is full then remove the objects chosen by the eviction policy
+     *    (by default the least recently accessed object) to make room for the new object.
+     * An object already stored under the same id is replaced by t.
      * @param t object to be put in the cache
-     * @return true if object is successfully added to the cache and false if the value is already in the cache
+     * @return true if object is successfully added to the cache and false if the value is already in the cache,
+     *          is heavier than the whole cache, or is the object the eviction policy chose to evict
      */
     public boolean put(T t) {
-        removeExpired();
-        Long time = System.currentTimeMillis();
-        Long[] times = {time, time};
-        if (cache.size() >= capacity){
-            // remove least accessed
-            removeLeastRecent();
-        }
-        for (Map.Entry e: cache.entrySet()){
-            if (e.getKey() == t)
+        long now = System.currentTimeMillis();
+        long weight = weigher.applyAsLong(t);
+        lock.lock();
+        try {
+            maintain(now);
+            Node<T> node = cache.get(t.id());
+            if (node != null && node.value == t) {
+                return false;
+            }
+            if (weight > maximumWeight) {
+                if (node != null) {
+                    removeNode(node);
+                }
+                onRemoval.accept(t);
                 return false;
+            }
+            if (node != null) {
+                replaceValue(node, t, weight);
+                refresh(node, now);
+                policy.onUpdate(node.id, weight);
+            } else {
+                node = new Node<>(t.id(), t, weight, now);
+                cache.put(node.id, node);
+                totalWeight += weight;
+                linkLast(node);
+                policy.onInsert(node.id, weight);
+            }
+            evictExcess();
+            return cache.get(node.id) == node;
+        } finally {
+            lock.unlock();
         }
-	    cache.put(t, times);
-	    return true;
     }
 
     /**
@@ -82,13 +188,15 @@ public class Cache<T extends Cacheable> {
      * @throws NoSuchObjectException if there is no object associated with "id" inside the cache
      */
     public T get(String id) throws NoSuchObjectException {
-        removeExpired();
-        for (T t: cache.keySet()){
-            if (t.id().equals(id)){
-               return t;
-            }
+        long now = System.currentTimeMillis();
+        Node<T> node = cache.get(id);
+        if (node == null || isExpired(node, now)) {
+            tryMaintain(now);
+            throw new NoSuchObjectException();
         }
-        throw new NoSuchObjectException();
+        readBuffer.offer(node);
+        tryMaintain(now);
+        return node.value;
     }
 
     /**
@@ -101,18 +209,20 @@ public class Cache<T extends Cacheable> {
      *          is not contained in the cache
      */
     public boolean touch(String id) {
-        removeExpired();
-        Long refresh = System.currentTimeMillis();
-
-        for (T t: cache.keySet()){
-            if (t.id().equals(id)){
-                cache.remove(t);
-                Long[] times = {refresh, refresh};
-                cache.put(t, times);
-                return true;
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            maintain(now);
+            Node<T> node = cache.get(id);
+            if (node == null) {
+                return false;
             }
+            refresh(node, now);
+            policy.onAccess(id);
+            return true;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
     /**
@@ -124,46 +234,295 @@ public class Cache<T extends Cacheable> {
      * @return true if successful and false if item to be updated does not exist in cache
      */
     public boolean update(T t) {
-        removeExpired();
-        Long[] time = {System.currentTimeMillis(), System.currentTimeMillis()};
-
-        if(this.cache.containsKey(t)) {
-            cache.put(t, time);
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            maintain(now);
+            Node<T> node = cache.get(t.id());
+            if (node == null) {
+                return false;
+            }
+            long weight = weigher.applyAsLong(t);
+            if (weight > maximumWeight) {
+                removeNode(node);
+                onRemoval.accept(t);
+                return false;
+            }
+            replaceValue(node, t, weight);
+            refresh(node, now);
+            policy.onUpdate(node.id, weight);
+            evictExcess();
             return true;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        return false;
+    /**
+     * Add a value to the cache as if it had last been refreshed at the given time, as when
+     * reloading a saved cache. Objects whose timeout has already passed are not added.
+     *
+     * @param t         object to be put in the cache
+     * @param refreshed the time, in milliseconds since the epoch, t was last stored or refreshed
+     * @return true if the object is added to the cache and false if it has expired, an object
+     *          with the same id is already in the cache, or the cache has no room for it;
+     *          an object that is not added is passed to the removal callback
+     */
+    public boolean restore(T t, long refreshed) {
+        long now = System.currentTimeMillis();
+        long weight = weigher.applyAsLong(t);
+        lock.lock();
+        try {
+            maintain(now);
+            Node<T> node = new Node<>(t.id(), t, weight, Math.min(refreshed, now));
+            if (isExpired(node, now) || cache.containsKey(node.id) || weight > maximumWeight) {
+                onRemoval.accept(t);
+                return false;
+            }
+            cache.put(node.id, node);
+            totalWeight += weight;
+            linkInOrder(node);
+            policy.onInsert(node.id, weight);
+            evictExcess();
+            return cache.get(node.id) == node;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lists the objects in the cache with the time each was last refreshed, from least to most
+     * recently refreshed. The list is a copy: it does not change as the cache changes.
+     *
+     * @return the entries of the cache, as (object, refresh time in milliseconds) pairs
+     */
+    public List<Map.Entry<T, Long>> entries() {
+        lock.lock();
+        try {
+            List<Map.Entry<T, Long>> entries = new ArrayList<>(cache.size());
+            for (Node<T> node = writeHead.writeNext; node != writeHead; node = node.writeNext) {
+                entries.add(Map.entry(node.value, node.refreshed));
+            }
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of objects in the cache, including any that have expired but
+     *          not yet been removed
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the ids of the objects in the cache, as a copy that does not change as the cache changes
+     */
+    public Set<String> ids() {
+        return new HashSet<>(cache.keySet());
+    }
+
+    /**
+     * Removes the object with the provided id, as when it is known to be out of date.
+     *
+     * @param id the identifier of the object to remove
+     * @return true if an object was removed and false if there was no object with id in the cache
+     */
+    public boolean remove(String id) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            maintain(now);
+            Node<T> node = cache.get(id);
+            if (node == null) {
+                return false;
+            }
+            removeNode(node);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * When number of items in the cache exceeds capacity, removes least recently accessed object
+     * Removes every object in the cache.
      */
-    private void removeLeastRecent(){
-        T leastRecent = null;
-        double compare = 0.0;
-        Long now = System.currentTimeMillis();
-        for (Map.Entry e: this.cache.entrySet()){
-            Long[] times = (Long[]) e.getValue();
-            Long accessedTime = times[1];
-            if ( now - accessedTime > compare ){
-                compare = accessedTime;
-                leastRecent = (T) e.getKey();
+    public void clear() {
+        lock.lock();
+        try {
+            readBuffer.clear();
+            while (writeHead.writeNext != writeHead) {
+                removeNode(writeHead.writeNext);
             }
+        } finally {
+            lock.unlock();
         }
-        cache.remove(leastRecent);
     }
 
     /**
-     * Removes the items stored at time with more than a "timeout" value difference from current time
+     * Removes the object the eviction policy would evict next, to make room for an object
+     * outside the cache, if the policy admits that object at its expense.
      *
+     * @param candidate the id of the object room is being made for
+     * @return true if an object was removed, and false if the cache was empty or the
+     *          policy keeps its object and turns candidate away
      */
-    private void removeExpired(){
-        for (Map.Entry e: this.cache.entrySet()){
-            Long[] times = (Long[]) e.getValue();
-            Long storedTime = times[0];
-            if ( System.currentTimeMillis() - storedTime > timeout ){
-                cache.remove(e);
+    public boolean evictFor(String candidate) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            maintain(now);
+            String victim = policy.victim();
+            if (victim == null || !policy.admit(candidate, victim)) {
+                return false;
             }
+            removeNode(cache.get(victim));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param node a node in the cache
+     * @param now  the current time in milliseconds
+     * @return true if node has not been refreshed within the timeout period
+     */
+    private boolean isExpired(Node<T> node, long now) {
+        return now - node.refreshed > timeout * 1000L;
+    }
+
+    /**
+     * Runs maintain(now) if no other thread holds the lock, otherwise leaves
+     * the work to the thread that does.
+     */
+    private void tryMaintain(long now) {
+        if (lock.tryLock()) {
+            try {
+                maintain(now);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Reports the accesses waiting in readBuffer to the policy, then removes the objects
+     * whose timeout has passed. Only the expired prefix of the deadline queue is visited.
+     * Requires lock to be held.
+     */
+    private void maintain(long now) {
+        Node<T> node;
+        while ((node = readBuffer.poll()) != null) {
+            if (cache.get(node.id) == node) {
+                policy.onAccess(node.id);
+            }
+        }
+        while (writeHead.writeNext != writeHead && isExpired(writeHead.writeNext, now)) {
+            removeNode(writeHead.writeNext);
+        }
+    }
+
+    /**
+     * Renews node's timeout by moving it to the back of the deadline queue.
+     * Requires lock to be held.
+     */
+    private void refresh(Node<T> node, long now) {
+        node.refreshed = now;
+        unlinkWrite(node);
+        linkLast(node);
+    }
+
+    /**
+     * Evicts the objects chosen by the policy until the cache is within its limits.
+     * Requires lock to be held.
+     */
+    private void evictExcess() {
+        while (cache.size() > capacity || totalWeight > maximumWeight) {
+            String victim = policy.victim();
+            if (victim == null) {
+                return;
+            }
+            removeNode(cache.get(victim));
+        }
+    }
+
+    /**
+     * Removes node from the index, the deadline queue and the policy. Requires lock to be held.
+     */
+    private void removeNode(Node<T> node) {
+        cache.remove(node.id, node);
+        totalWeight -= node.weight;
+        unlinkWrite(node);
+        policy.onRemove(node.id);
+        onRemoval.accept(node.value);
+    }
+
+    /**
+     * Stores t, of the given weight, in node in place of its current object. Requires lock to be held.
+     */
+    private void replaceValue(Node<T> node, T t, long weight) {
+        T old = node.value;
+        node.value = t;
+        totalWeight += weight - node.weight;
+        node.weight = weight;
+        if (old != t) {
+            onRemoval.accept(old);
+        }
+    }
+
+    private void linkLast(Node<T> node) {
+        node.writeNext = writeHead;
+        node.writePrev = writeHead.writePrev;
+        writeHead.writePrev.writeNext = node;
+        writeHead.writePrev = node;
+    }
+
+    /**
+     * Links node into the deadline queue behind every node refreshed no later than it.
+     * Takes constant time when nodes are linked in order of refresh time.
+     */
+    private void linkInOrder(Node<T> node) {
+        Node<T> prev = writeHead.writePrev;
+        while (prev != writeHead && prev.refreshed > node.refreshed) {
+            prev = prev.writePrev;
+        }
+        node.writePrev = prev;
+        node.writeNext = prev.writeNext;
+        prev.writeNext.writePrev = node;
+        prev.writeNext = node;
+    }
+
+    private void unlinkWrite(Node<T> node) {
+        node.writePrev.writeNext = node.writeNext;
+        node.writeNext.writePrev = node.writePrev;
+        node.writePrev = null;
+        node.writeNext = null;
+    }
+
+    /**
+     * An entry of the cache, linked into the deadline queue.
+     */
+    static final class Node<T> {
+        final String id;
+        volatile T value;
+        volatile long refreshed;
+        long weight;
+        Node<T> writePrev;
+        Node<T> writeNext;
+
+        Node(String id, T value, long weight, long refreshed) {
+            this.id = id;
+            this.value = value;
+            this.weight = weight;
+            this.refreshed = refreshed;
+        }
+
+        @Override
+        public String toString() {
+            return id;
         }
     }
 
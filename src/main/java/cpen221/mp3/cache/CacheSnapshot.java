@@ -0,0 +1,190 @@
+package cpen221.mp3.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Saves the contents of a Cache to a compact binary file and loads them back, so that
+ * a restarted program can begin with the cache it had before.
+ *
+ * A snapshot file holds, in big-endian order:
+ *      int magic, int version, then any number of entries each made of
+ *      long refreshed (milliseconds since the epoch), string id, int length, length bytes of value,
+ *      then the long END
+ * where a string is an int length followed by that many bytes of UTF-8.
+ *
+ * Files are written to a temporary file that is then moved over the snapshot, so a
+ * snapshot is never seen half written. They are read through a memory-mapped buffer,
+ * so loading does not copy the file onto the heap.
+ */
+public final class CacheSnapshot {
+
+    /* "MP3C" */
+    public static final int CACHE_MAGIC = 0x4d503343;
+    public static final int VERSION = 1;
+
+    /* marks the end of the entries; never a valid refresh time */
+    private static final long END = -1;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * Writes the data produced by a SnapshotWriter.
+     */
+    public interface SnapshotWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Save every object in cache to file, replacing any previous snapshot.
+     *
+     * @param cache   the cache to save
+     * @param file    the snapshot file
+     * @param encoder turns an object into bytes; may return null to leave the object out
+     * @throws IOException if the file cannot be written
+     */
+    public static <T extends Cacheable> void save(Cache<T> cache, Path file,
+                                                  Function<? super T, byte[]> encoder) throws IOException {
+        write(file, CACHE_MAGIC, out -> {
+            for (Map.Entry<T, Long> entry : cache.entries()) {
+                byte[] value = encoder.apply(entry.getKey());
+                if (value != null) {
+                    out.writeLong(entry.getValue());
+                    writeString(out, entry.getKey().id());
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+            }
+            out.writeLong(END);
+        });
+    }
+
+    /**
+     * Load the objects saved in file into cache. Objects that have expired since the snapshot
+     * was taken are skipped. Does nothing if the file does not exist.
+     *
+     * @param cache   the cache to load into
+     * @param file    the snapshot file
+     * @param decoder turns an id and a read-only buffer holding the saved bytes into an object;
+     *                the buffer is only valid during the call. May return null to skip the entry.
+     * @return the number of objects added to cache
+     * @throws IOException if the file cannot be read, is not a cache snapshot, or is corrupt
+     */
+    public static <T extends Cacheable> int load(Cache<T> cache, Path file,
+                                                 BiFunction<String, ByteBuffer, T> decoder) throws IOException {
+        ByteBuffer in = map(file, CACHE_MAGIC);
+        if (in == null) {
+            return 0;
+        }
+        int loaded = 0;
+        try {
+            long refreshed;
+            while ((refreshed = in.getLong()) != END) {
+                String id = readString(in);
+                int length = readLength(in, 1);
+                ByteBuffer value = in.slice();
+                value.limit(length);
+                in.position(in.position() + length);
+                T t = decoder.apply(id, value.asReadOnlyBuffer());
+                if (t != null && cache.restore(t, refreshed)) {
+                    loaded++;
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("truncated snapshot: " + file, e);
+        }
+        return loaded;
+    }
+
+    /**
+     * Atomically replace file with a snapshot starting with magic and VERSION
+     * followed by whatever writer writes.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path file, int magic, SnapshotWriter writer) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(magic);
+                out.writeInt(VERSION);
+                writer.write(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Memory-map a snapshot file and check its header.
+     *
+     * @return a buffer positioned just after the header, or null if the file does not exist
+     * @throws IOException if the file cannot be read or does not start with magic and VERSION
+     */
+    public static ByteBuffer map(Path file, int magic) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 8 || in.getInt() != magic || in.getInt() != VERSION) {
+                throw new IOException("not a snapshot: " + file);
+            }
+            return in;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write s as an int length followed by its UTF-8 bytes.
+     */
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString.
+     *
+     * @throws IOException if its length does not fit in what remains of in
+     */
+    public static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[readLength(in, 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the length of an array or string, checking that it could be followed by that
+     * many items before the end of in, so a corrupt length is never used to allocate memory.
+     *
+     * @param itemSize the number of bytes each item takes in the file, requires itemSize > 0
+     * @return the length, at least 0
+     * @throws IOException if the length is negative or its items would not fit in what remains of in
+     */
+    public static int readLength(ByteBuffer in, int itemSize) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || (long) length * itemSize > in.remaining()) {
+            throw new IOException("corrupt snapshot: length " + length + " at " + (in.position() - 4));
+        }
+        return length;
+    }
+
+}
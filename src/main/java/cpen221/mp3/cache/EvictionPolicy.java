@@ -0,0 +1,64 @@
+package cpen221.mp3.cache;
+
+/**
+ * Decides which object a Cache removes when it holds more than it may.
+ * A policy only sees the ids of the objects in the cache and is told about every
+ * insertion, access and removal. All calls are made while the cache is locked,
+ * so an implementation does not need to be thread-safe, but an instance must not
+ * be shared between caches.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called when an object is added to the cache.
+     *
+     * @param id     the id of the new object, not already known to this policy
+     * @param weight the weight of the new object
+     */
+    void onInsert(String id, long weight);
+
+    /**
+     * Called when an object in the cache is read or touched.
+     *
+     * @param id the id of an object known to this policy
+     */
+    void onAccess(String id);
+
+    /**
+     * Called when an object in the cache is replaced by a new object with the same id.
+     * This also counts as an access.
+     *
+     * @param id     the id of an object known to this policy
+     * @param weight the weight of the new object
+     */
+    void onUpdate(String id, long weight);
+
+    /**
+     * Called when an object leaves the cache for any reason, including eviction.
+     *
+     * @param id the id of an object known to this policy, which it must forget
+     */
+    void onRemove(String id);
+
+    /**
+     * Chooses the next object to evict. The object is not removed until onRemove is called.
+     *
+     * @return the id of the object to evict, or null if this policy knows of no objects
+     */
+    String victim();
+
+    /**
+     * Decides whether an object outside the cache is worth more than victim, so that victim
+     * should be evicted to make room for it. May be asked several times for one candidate,
+     * once for each object that must go to make room.
+     *
+     * @param candidate the id of an object not known to this policy
+     * @param victim    the id this policy last chose by victim()
+     * @return true if victim should be evicted for candidate, false if candidate should be
+     *          turned away instead
+     */
+    default boolean admit(String candidate, String victim) {
+        return true;
+    }
+
+}
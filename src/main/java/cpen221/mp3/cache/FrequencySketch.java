@@ -0,0 +1,112 @@
+package cpen221.mp3.cache;
+
+/**
+ * Estimates how often each id has been seen recently, in a fixed amount of memory.
+ * This is a Count-Min sketch with four rows of small counters: an estimate is never
+ * lower than the true count (up to MAX_COUNT), and may be higher when ids collide.
+ * Once the number of increments reaches sampleSize every counter is halved, so the
+ * estimates favour recent history.
+ *
+ * Abstraction Function:
+ *      table[i * width + j] is the counter at column j of row i; the frequency of an id is the
+ *      smallest of its four counters, one per row, at the columns picked by indexOf.
+ *      additions counts the increments since the counters were last halved.
+ *
+ * Representation Invariant:
+ *      width is a power of two and table.length == DEPTH * width
+ *      0 <= table[k] <= MAX_COUNT for all k
+ *      0 <= additions < sampleSize
+ */
+public final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private int[] table;
+    private int width;
+    private long sampleSize;
+    private long additions;
+
+    /**
+     * Create a sketch sized for roughly expected distinct ids.
+     *
+     * @param expected the number of ids the sketch should tell apart, requires expected >= 0
+     */
+    public FrequencySketch(long expected) {
+        ensureCapacity(expected);
+    }
+
+    /**
+     * Grow the sketch if it is too small for expected ids. Growing forgets all counts.
+     *
+     * @param expected the number of ids the sketch should tell apart, requires expected >= 0
+     */
+    public void ensureCapacity(long expected) {
+        if (table != null && expected <= width / 2) {
+            return;
+        }
+        int wanted = (int) Math.min(1 << 30, Math.max(16, Long.highestOneBit(Math.max(1, expected) * 2 - 1) << 1));
+        if (table == null || wanted > width) {
+            width = wanted;
+            table = new int[DEPTH * width];
+            sampleSize = 10L * width;
+            additions = 0;
+        }
+    }
+
+    /**
+     * Record one more occurrence of id.
+     */
+    public void increment(String id) {
+        int hash = spread(id.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int k = i * width + indexOf(hash, i);
+            if (table[k] < MAX_COUNT) {
+                table[k]++;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @return the estimated number of recent occurrences of id
+     */
+    public int frequency(String id) {
+        int hash = spread(id.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, table[i * width + indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Halve every counter so that old occurrences count for less.
+     */
+    private void reset() {
+        for (int k = 0; k < table.length; k++) {
+            table[k] >>>= 1;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & (width - 1);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+}
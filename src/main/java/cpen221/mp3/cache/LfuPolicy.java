@@ -0,0 +1,99 @@
+package cpen221.mp3.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Evicts the least frequently accessed object, breaking ties by evicting the object
+ * that reached its frequency first. Every operation takes constant time.
+ *
+ * Abstraction Function:
+ *      the buckets reachable from head, in increasing order of freq, each hold the ids that
+ *      have been inserted or accessed exactly freq times, in the order they reached freq.
+ *      bucketOf maps each id to the bucket holding it.
+ *
+ * Representation Invariant:
+ *      head.freq == 0 and head.ids is empty
+ *      every other bucket reachable from head is non-empty and has a larger freq than its prev
+ *      each id appears in exactly one bucket, and bucketOf.get(id) is that bucket
+ */
+public class LfuPolicy implements EvictionPolicy {
+
+    private final Map<String, Bucket> bucketOf = new HashMap<>();
+    private final Bucket head = new Bucket(0);
+
+    public LfuPolicy() {
+        head.prev = head;
+        head.next = head;
+    }
+
+    @Override
+    public void onInsert(String id, long weight) {
+        Bucket first = head.next;
+        if (first == head || first.freq != 1) {
+            first = linkAfter(head, 1);
+        }
+        first.ids.add(id);
+        bucketOf.put(id, first);
+    }
+
+    @Override
+    public void onAccess(String id) {
+        Bucket bucket = bucketOf.get(id);
+        Bucket next = bucket.next;
+        if (next == head || next.freq != bucket.freq + 1) {
+            next = linkAfter(bucket, bucket.freq + 1);
+        }
+        next.ids.add(id);
+        bucketOf.put(id, next);
+        removeFrom(bucket, id);
+    }
+
+    @Override
+    public void onUpdate(String id, long weight) {
+        onAccess(id);
+    }
+
+    @Override
+    public void onRemove(String id) {
+        Bucket bucket = bucketOf.remove(id);
+        if (bucket != null) {
+            removeFrom(bucket, id);
+        }
+    }
+
+    @Override
+    public String victim() {
+        return head.next == head ? null : head.next.ids.iterator().next();
+    }
+
+    private Bucket linkAfter(Bucket bucket, long freq) {
+        Bucket added = new Bucket(freq);
+        added.prev = bucket;
+        added.next = bucket.next;
+        bucket.next.prev = added;
+        bucket.next = added;
+        return added;
+    }
+
+    private void removeFrom(Bucket bucket, String id) {
+        bucket.ids.remove(id);
+        if (bucket.ids.isEmpty()) {
+            bucket.prev.next = bucket.next;
+            bucket.next.prev = bucket.prev;
+        }
+    }
+
+    private static final class Bucket {
+        final long freq;
+        final LinkedHashSet<String> ids = new LinkedHashSet<>();
+        Bucket prev;
+        Bucket next;
+
+        Bucket(long freq) {
+            this.freq = freq;
+        }
+    }
+
+}
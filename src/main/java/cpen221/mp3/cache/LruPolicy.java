@@ -0,0 +1,45 @@
+package cpen221.mp3.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts the least recently accessed object.
+ *
+ * Abstraction Function:
+ *      order holds the ids known to this policy, from least recently accessed
+ *      (first in iteration order) to most recently accessed (last)
+ *
+ * Representation Invariant:
+ *      order is not null
+ */
+public class LruPolicy implements EvictionPolicy {
+
+    private final Map<String, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void onInsert(String id, long weight) {
+        order.put(id, Boolean.TRUE);
+    }
+
+    @Override
+    public void onAccess(String id) {
+        order.get(id);
+    }
+
+    @Override
+    public void onUpdate(String id, long weight) {
+        order.get(id);
+    }
+
+    @Override
+    public void onRemove(String id) {
+        order.remove(id);
+    }
+
+    @Override
+    public String victim() {
+        return order.isEmpty() ? null : order.keySet().iterator().next();
+    }
+
+}
@@ -0,0 +1,226 @@
+package cpen221.mp3.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores byte arrays outside the Java heap, in direct ByteBuffer slabs that are
+ * carved into fixed-size chunks. A stored array occupies as many chunks as it needs,
+ * so freeing it never fragments the store.
+ *
+ * Abstraction Function:
+ *      slabs.get(s) holds chunks s * chunksPerSlab .. (s + 1) * chunksPerSlab - 1, each chunkSize
+ *      bytes long. The chunks listed in freeChunks[0 .. freeCount - 1] are unused; every other chunk
+ *      of an allocated slab belongs to exactly one live Block. At most budget bytes of slabs are
+ *      ever allocated; slabs are allocated lazily as they are needed.
+ *
+ * Representation Invariant:
+ *      chunkSize > 0, chunksPerSlab > 0, budget >= 0
+ *      slabs.size() * chunksPerSlab * chunkSize <= budget
+ *      0 <= freeCount <= slabs.size() * chunksPerSlab
+ *      usedChunks + freeCount == slabs.size() * chunksPerSlab
+ *
+ * Thread Safety:
+ *      allocation and freeing synchronize on this store; reading and freeing a Block
+ *      synchronize on the Block, so a chunk is never reused while it is being read.
+ */
+public class SlabStore {
+
+    /* the default chunk size is 4KB */
+    public static final int DCHUNK = 4 * 1024;
+
+    /* the default slab size is 1MB */
+    public static final int DSLAB = 1024 * 1024;
+
+    private final int chunkSize;
+    private final int chunksPerSlab;
+    private final long budget;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private int[] freeChunks = new int[0];
+    private int freeCount;
+    private long usedChunks;
+
+    /**
+     * Create a store that may allocate up to budget bytes of off-heap memory.
+     * The budget is rounded down to a whole number of slabs.
+     *
+     * @param budget    the maximum number of off-heap bytes, requires budget >= 0
+     * @param chunkSize the allocation unit in bytes, requires chunkSize > 0
+     * @param slabSize  the size of each direct buffer in bytes, requires slabSize >= chunkSize
+     */
+    public SlabStore(long budget, int chunkSize, int slabSize) {
+        this.chunkSize = chunkSize;
+        this.chunksPerSlab = slabSize / chunkSize;
+        long slabBytes = (long) chunksPerSlab * chunkSize;
+        this.budget = budget - budget % slabBytes;
+    }
+
+    /**
+     * Create a store with default chunk and slab sizes.
+     *
+     * @param budget the maximum number of off-heap bytes, requires budget >= 0
+     */
+    public SlabStore(long budget) {
+        this(budget, DCHUNK, DSLAB);
+    }
+
+    /**
+     * @return the maximum number of off-heap bytes this store may use, a whole number of slabs
+     */
+    public long budget() {
+        return budget;
+    }
+
+    /**
+     * @return the number of bytes taken up by live blocks, counted in whole chunks
+     */
+    public synchronized long usedBytes() {
+        return usedChunks * chunkSize;
+    }
+
+    /**
+     * @param length a number of bytes
+     * @return the number of bytes a block of that length occupies in this store
+     */
+    public long footprint(int length) {
+        return (long) chunksFor(length) * chunkSize;
+    }
+
+    /**
+     * @param length a number of bytes
+     * @return true if a block of that length can be written without freeing anything
+     */
+    public synchronized boolean fits(int length) {
+        return chunksFor(length) <= freeCount + unallocatedChunks();
+    }
+
+    /**
+     * Copy data into the store.
+     *
+     * @param data the bytes to store
+     * @return a Block referring to the stored copy, or null if there is not enough free space
+     */
+    public Block write(byte[] data) {
+        return write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Copy the remaining bytes of data into the store. On success data is left
+     * at its limit; otherwise it is unchanged.
+     *
+     * @param data the bytes to store
+     * @return a Block referring to the stored copy, or null if there is not enough free space
+     */
+    public synchronized Block write(ByteBuffer data) {
+        int length = data.remaining();
+        int needed = chunksFor(length);
+        if (needed > freeCount + unallocatedChunks()) {
+            return null;
+        }
+        while (freeCount < needed) {
+            allocateSlab();
+        }
+        int[] chunks = new int[needed];
+        for (int i = 0; i < needed; i++) {
+            chunks[i] = freeChunks[--freeCount];
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + Math.min(chunkSize, data.remaining()));
+            chunk(chunks[i]).put(part);
+            data.position(part.limit());
+        }
+        usedChunks += needed;
+        return new Block(this, chunks, length);
+    }
+
+    /**
+     * Return the chunks of a block to the free list.
+     */
+    private synchronized void release(int[] chunks) {
+        for (int c : chunks) {
+            freeChunks[freeCount++] = c;
+        }
+        usedChunks -= chunks.length;
+    }
+
+    private int chunksFor(int length) {
+        return (length + chunkSize - 1) / chunkSize;
+    }
+
+    private long unallocatedChunks() {
+        long slabBytes = (long) chunksPerSlab * chunkSize;
+        return (budget / slabBytes - slabs.size()) * chunksPerSlab;
+    }
+
+    private void allocateSlab() {
+        int first = slabs.size() * chunksPerSlab;
+        slabs.add(ByteBuffer.allocateDirect(chunksPerSlab * chunkSize));
+        if (freeChunks.length < first + chunksPerSlab) {
+            int[] grown = new int[first + chunksPerSlab];
+            System.arraycopy(freeChunks, 0, grown, 0, freeCount);
+            freeChunks = grown;
+        }
+        for (int c = first + chunksPerSlab - 1; c >= first; c--) {
+            freeChunks[freeCount++] = c;
+        }
+    }
+
+    /**
+     * @return an independent view of chunk c, positioned at its first byte
+     */
+    private synchronized ByteBuffer chunk(int c) {
+        ByteBuffer view = slabs.get(c / chunksPerSlab).duplicate();
+        int start = (c % chunksPerSlab) * chunkSize;
+        view.limit(start + chunkSize).position(start);
+        return view;
+    }
+
+    /**
+     * A byte array stored in a SlabStore. A Block can be read until it is freed.
+     */
+    public static final class Block {
+        private final SlabStore store;
+        private final int[] chunks;
+        private final int length;
+        private boolean freed;
+
+        private Block(SlabStore store, int[] chunks, int length) {
+            this.store = store;
+            this.chunks = chunks;
+            this.length = length;
+        }
+
+        /**
+         * @return the number of bytes in this block
+         */
+        public int length() {
+            return length;
+        }
+
+        /**
+         * @return a heap copy of the bytes in this block
+         * @throws IllegalStateException if this block has been freed
+         */
+        public synchronized byte[] read() {
+            if (freed) {
+                throw new IllegalStateException("block has been freed");
+            }
+            byte[] data = new byte[length];
+            for (int i = 0; i < chunks.length; i++) {
+                int offset = i * store.chunkSize;
+                store.chunk(chunks[i]).get(data, offset, Math.min(store.chunkSize, length - offset));
+            }
+            return data;
+        }
+
+        /**
+         * Give this block's space back to the store. Does nothing if already freed.
+         */
+        public synchronized void free() {
+            if (!freed) {
+                freed = true;
+                store.release(chunks);
+            }
+        }
+    }
+}
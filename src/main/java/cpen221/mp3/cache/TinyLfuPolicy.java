@@ -0,0 +1,183 @@
+package cpen221.mp3.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Window TinyLFU: new objects enter a small LRU admission window, and objects leaving the window
+ * must be accessed more often than the object they would displace to be kept in the main space.
+ * This stops a scan of objects that are each used once from flushing a frequently used working set.
+ *
+ * Abstraction Function:
+ *      every id known to this policy is in exactly one of three LRU segments, each a circular list
+ *      ordered from least recently accessed (sentinel.next) to most recently accessed (sentinel.prev):
+ *          window, which every new id enters first and which holds about WINDOW_PERCENT% of the weight
+ *          probation, the part of the main space that ids leaving the window, or protected, enter
+ *          protected, the part of the main space for ids accessed while on probation, which holds
+ *              at most PROTECTED_PERCENT% of the weight of the main space
+ *      sketch estimates how often each id has been inserted or accessed recently.
+ *      The id at the back of probation is the candidate most recently admitted to the main space,
+ *      and it competes with the id at the front of probation when something must be evicted.
+ *
+ * Representation Invariant:
+ *      entries maps each known id to its entry, whose segment is the list holding it
+ *      windowWeight, probationWeight and protectedWeight are the sums of the weights of
+ *          the entries in each segment
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Entry[] segments = {new Entry(null, 0), new Entry(null, 0), new Entry(null, 0)};
+    private final long[] weights = new long[3];
+    private final FrequencySketch sketch = new FrequencySketch(0);
+
+    public TinyLfuPolicy() {
+        for (int s = 0; s < segments.length; s++) {
+            segments[s].prev = segments[s];
+            segments[s].next = segments[s];
+            segments[s].segment = s;
+        }
+    }
+
+    @Override
+    public void onInsert(String id, long weight) {
+        Entry entry = new Entry(id, weight);
+        entries.put(id, entry);
+        sketch.ensureCapacity(entries.size());
+        sketch.increment(id);
+        linkLast(entry, WINDOW);
+        balanceWindow();
+    }
+
+    @Override
+    public void onAccess(String id) {
+        Entry entry = entries.get(id);
+        sketch.increment(id);
+        if (entry.segment == PROBATION) {
+            unlink(entry);
+            linkLast(entry, PROTECTED);
+            balanceProtected();
+        } else {
+            unlink(entry);
+            linkLast(entry, entry.segment);
+        }
+    }
+
+    @Override
+    public void onUpdate(String id, long weight) {
+        Entry entry = entries.get(id);
+        weights[entry.segment] += weight - entry.weight;
+        entry.weight = weight;
+        onAccess(id);
+        balanceWindow();
+    }
+
+    @Override
+    public void onRemove(String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    @Override
+    public String victim() {
+        Entry probation = segments[PROBATION];
+        if (probation.next != probation) {
+            Entry victim = probation.next;
+            Entry candidate = probation.prev;
+            if (candidate == victim) {
+                return victim.id;
+            }
+            return sketch.frequency(candidate.id) > sketch.frequency(victim.id) ? victim.id : candidate.id;
+        }
+        for (int s : new int[] {WINDOW, PROTECTED}) {
+            if (segments[s].next != segments[s]) {
+                return segments[s].next.id;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Admits candidate only if it has been seen more often than victim. A candidate that is
+     * turned away is still counted, so an object asked for again and again gets in.
+     */
+    @Override
+    public boolean admit(String candidate, String victim) {
+        if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+            return true;
+        }
+        sketch.increment(candidate);
+        return false;
+    }
+
+    /**
+     * Moves the least recently accessed ids out of the window into probation
+     * until the window is back to its share of the total weight.
+     */
+    private void balanceWindow() {
+        long total = weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+        long maxWindow = Math.max(1, total * WINDOW_PERCENT / 100);
+        Entry window = segments[WINDOW];
+        while (weights[WINDOW] > maxWindow && window.next != window.prev) {
+            Entry oldest = window.next;
+            unlink(oldest);
+            linkLast(oldest, PROBATION);
+        }
+    }
+
+    /**
+     * Demotes the least recently accessed ids in protected to probation
+     * until protected is back to its share of the main space.
+     */
+    private void balanceProtected() {
+        long main = weights[PROBATION] + weights[PROTECTED];
+        long maxProtected = main * PROTECTED_PERCENT / 100;
+        Entry protectedHead = segments[PROTECTED];
+        while (weights[PROTECTED] > maxProtected && protectedHead.next != protectedHead.prev) {
+            Entry oldest = protectedHead.next;
+            unlink(oldest);
+            linkLast(oldest, PROBATION);
+        }
+    }
+
+    private void linkLast(Entry entry, int segment) {
+        Entry head = segments[segment];
+        entry.segment = segment;
+        entry.next = head;
+        entry.prev = head.prev;
+        head.prev.next = entry;
+        head.prev = entry;
+        weights[segment] += entry.weight;
+    }
+
+    private void unlink(Entry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        weights[entry.segment] -= entry.weight;
+    }
+
+    private static final class Entry {
+        final String id;
+        long weight;
+        int segment;
+        Entry prev;
+        Entry next;
+
+        Entry(String id, long weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+    }
+
+}
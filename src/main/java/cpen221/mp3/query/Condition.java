@@ -0,0 +1,145 @@
+package cpen221.mp3.query;
+
+import java.util.Objects;
+
+/**
+ * A condition on Wikipedia pages in a structured query:
+ *      Condition = Simple(field: Field, value: String)
+ *                + And(left: Condition, right: Condition)
+ *                + Or(left: Condition, right: Condition)
+ *
+ * Conditions are immutable, and equal when they have the same structure.
+ */
+public abstract class Condition {
+
+    /**
+     * The property of a page a simple condition compares.
+     */
+    public enum Field {
+        TITLE, AUTHOR, CATEGORY
+    }
+
+    private Condition() {
+    }
+
+    /**
+     * A condition that holds for pages whose field is value.
+     *
+     * Abstraction Function:
+     *      the pages whose title is value, whose most recent author is value,
+     *      or that are in the category value, according to field
+     *
+     * Representation Invariant:
+     *      field != null, value != null
+     */
+    public static final class Simple extends Condition {
+        private final Field field;
+        private final String value;
+
+        public Simple(Field field, String value) {
+            this.field = field;
+            this.value = value;
+        }
+
+        public Field field() {
+            return field;
+        }
+
+        public String value() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Simple && ((Simple) o).field == field && ((Simple) o).value.equals(value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(field, value);
+        }
+
+        @Override
+        public String toString() {
+            return field.name().toLowerCase() + " is " + QueryParser.quote(value);
+        }
+    }
+
+    /**
+     * A condition that holds for pages meeting both of two conditions.
+     *
+     * Representation Invariant:
+     *      left != null, right != null
+     */
+    public static final class And extends Condition {
+        private final Condition left;
+        private final Condition right;
+
+        public And(Condition left, Condition right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public Condition left() {
+            return left;
+        }
+
+        public Condition right() {
+            return right;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof And && ((And) o).left.equals(left) && ((And) o).right.equals(right);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash("and", left, right);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " and " + right + ")";
+        }
+    }
+
+    /**
+     * A condition that holds for pages meeting either of two conditions.
+     *
+     * Representation Invariant:
+     *      left != null, right != null
+     */
+    public static final class Or extends Condition {
+        private final Condition left;
+        private final Condition right;
+
+        public Or(Condition left, Condition right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public Condition left() {
+            return left;
+        }
+
+        public Condition right() {
+            return right;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Or && ((Or) o).left.equals(left) && ((Or) o).right.equals(right);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash("or", left, right);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " or " + right + ")";
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package cpen221.mp3.query;
+
+import java.util.Objects;
+
+/**
+ * A parsed structured query: get item where condition, optionally sorted.
+ *
+ * Abstraction Function:
+ *      the items of kind item (pages, their authors or their categories) of every page
+ *      meeting condition, in ascending or descending order if order is not UNSORTED
+ *
+ * Representation Invariant:
+ *      item, condition and order != null
+ *
+ * Queries are immutable.
+ */
+public final class Query {
+
+    /**
+     * What a query returns for each page meeting its condition.
+     */
+    public enum Item {
+        PAGE, AUTHOR, CATEGORY
+    }
+
+    /**
+     * The order of a query's results.
+     */
+    public enum Order {
+        UNSORTED, ASC, DESC
+    }
+
+    private final Item item;
+    private final Condition condition;
+    private final Order order;
+
+    public Query(Item item, Condition condition, Order order) {
+        this.item = item;
+        this.condition = condition;
+        this.order = order;
+    }
+
+    public Item item() {
+        return item;
+    }
+
+    public Condition condition() {
+        return condition;
+    }
+
+    public Order order() {
+        return order;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Query)) {
+            return false;
+        }
+        Query q = (Query) o;
+        return q.item == item && q.condition.equals(condition) && q.order == order;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(item, condition, order);
+    }
+
+    @Override
+    public String toString() {
+        return "get " + item.name().toLowerCase() + " where " + condition
+                + (order == Order.UNSORTED ? "" : " " + order.name().toLowerCase());
+    }
+}
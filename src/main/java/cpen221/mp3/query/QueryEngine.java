@@ -0,0 +1,76 @@
+package cpen221.mp3.query;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs structured queries against a source, compiling each distinct query once.
+ *
+ * Abstraction Function:
+ *      source answers every query; plans maps the text of recently run queries, with
+ *      surrounding whitespace removed, to their compiled plans, holding at most
+ *      PLAN_CACHE of them and forgetting the least recently used first
+ *
+ * Representation Invariant:
+ *      source != null, plans != null, plans.size() <= PLAN_CACHE
+ *
+ * Thread Safety:
+ *      plans is only used while synchronized on it, and plans are immutable,
+ *      so any number of threads may run queries at once.
+ */
+public class QueryEngine {
+
+    /* the plans of the last 256 distinct queries are kept */
+    public static final int PLAN_CACHE = 256;
+
+    private final QuerySource source;
+    private final Map<String, QueryPlan> plans = new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+            return size() > PLAN_CACHE;
+        }
+    };
+
+    /**
+     * Create an engine.
+     *
+     * @param source where facts about pages come from
+     */
+    public QueryEngine(QuerySource source) {
+        this.source = source;
+    }
+
+    /**
+     * Run a structured query.
+     *
+     * @param query the text of the query
+     * @return the items selected by the query
+     * @throws IllegalArgumentException if query does not follow the query grammar
+     */
+    public List<String> execute(String query) {
+        return compile(query).execute(source);
+    }
+
+    /**
+     * Compile a structured query, or find the plan it was compiled to before.
+     *
+     * @param query the text of the query
+     * @return a plan for query
+     * @throws IllegalArgumentException if query does not follow the query grammar
+     */
+    public QueryPlan compile(String query) {
+        String key = query.trim();
+        synchronized (plans) {
+            QueryPlan plan = plans.get(key);
+            if (plan != null) {
+                return plan;
+            }
+        }
+        QueryPlan plan = QueryPlan.compile(QueryParser.parse(key));
+        synchronized (plans) {
+            plans.put(key, plan);
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,223 @@
+package cpen221.mp3.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses structured queries, written in this grammar:
+ *
+ *      QUERY          ::= 'get' ITEM 'where' CONDITION SORTED?
+ *      CONDITION      ::= AND_CONDITION ('or' AND_CONDITION)*
+ *      AND_CONDITION  ::= PRIMARY ('and' PRIMARY)*
+ *      PRIMARY        ::= '(' CONDITION ')' | SIMPLE
+ *      SIMPLE         ::= ('title' | 'author' | 'category') 'is' STRING
+ *      ITEM           ::= 'page' | 'author' | 'category'
+ *      SORTED         ::= 'asc' | 'desc'
+ *      STRING         ::= '\'' (any character but '\'' | '\'\'')* '\''
+ *
+ * A quote inside a string is written twice, as in 'Ender''s Game'.
+ * Keywords are lower case and tokens may be separated by any whitespace. 'and' binds more
+ * tightly than 'or', so the fully parenthesized queries of the original grammar, such as
+ *      get page where (category is 'A' or (title is 'B' and author is 'C')) asc
+ * parse as they always have.
+ *
+ * A parser is used for a single query, by one thread.
+ */
+public final class QueryParser {
+
+    private final String text;
+    private final List<Token> tokens;
+    private int next;
+
+    private QueryParser(String text) {
+        this.text = text;
+        this.tokens = tokenize(text);
+    }
+
+    /**
+     * Parse a structured query.
+     *
+     * @param query the text of the query
+     * @return the query
+     * @throws IllegalArgumentException if query does not follow the grammar
+     */
+    public static Query parse(String query) {
+        QueryParser parser = new QueryParser(query);
+        Query q = parser.query();
+        if (parser.next < parser.tokens.size()) {
+            throw parser.error("unexpected '" + parser.peek().text + "'");
+        }
+        return q;
+    }
+
+    private Query query() {
+        expect("get");
+        Query.Item item;
+        String word = word();
+        switch (word) {
+            case "page":
+                item = Query.Item.PAGE;
+                break;
+            case "author":
+                item = Query.Item.AUTHOR;
+                break;
+            case "category":
+                item = Query.Item.CATEGORY;
+                break;
+            default:
+                next--;
+                throw error("expected page, author or category but found '" + word + "'");
+        }
+        expect("where");
+        Condition condition = condition();
+        Query.Order order = Query.Order.UNSORTED;
+        if (accept("asc")) {
+            order = Query.Order.ASC;
+        } else if (accept("desc")) {
+            order = Query.Order.DESC;
+        }
+        return new Query(item, condition, order);
+    }
+
+    private Condition condition() {
+        Condition c = andCondition();
+        while (accept("or")) {
+            c = new Condition.Or(c, andCondition());
+        }
+        return c;
+    }
+
+    private Condition andCondition() {
+        Condition c = primary();
+        while (accept("and")) {
+            c = new Condition.And(c, primary());
+        }
+        return c;
+    }
+
+    private Condition primary() {
+        if (accept("(")) {
+            Condition c = condition();
+            expect(")");
+            return c;
+        }
+        Condition.Field field;
+        String word = word();
+        switch (word) {
+            case "title":
+                field = Condition.Field.TITLE;
+                break;
+            case "author":
+                field = Condition.Field.AUTHOR;
+                break;
+            case "category":
+                field = Condition.Field.CATEGORY;
+                break;
+            default:
+                next--;
+                throw error("expected a condition but found '" + word + "'");
+        }
+        expect("is");
+        if (next >= tokens.size() || !peek().string) {
+            throw error("expected a quoted string");
+        }
+        return new Condition.Simple(field, tokens.get(next++).text);
+    }
+
+    private Token peek() {
+        return tokens.get(next);
+    }
+
+    private String word() {
+        if (next >= tokens.size()) {
+            throw error("unexpected end of query");
+        }
+        Token t = tokens.get(next++);
+        return t.string ? quote(t.text) : t.text;
+    }
+
+    /**
+     * @return value written as a STRING of the grammar, which parses back to value
+     */
+    static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    private boolean accept(String keyword) {
+        if (next < tokens.size() && !peek().string && peek().text.equals(keyword)) {
+            next++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String keyword) {
+        if (!accept(keyword)) {
+            throw error(next < tokens.size()
+                    ? "expected '" + keyword + "' but found '" + peek().text + "'"
+                    : "expected '" + keyword + "' but the query ended");
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        int at = next < tokens.size() ? tokens.get(next).position : text.length();
+        return new IllegalArgumentException("bad query at " + at + ": " + message);
+    }
+
+    /**
+     * Split a query into words, parentheses and quoted strings.
+     */
+    private static List<Token> tokenize(String text) {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(new Token(String.valueOf(c), false, i));
+                i++;
+            } else if (c == '\'') {
+                StringBuilder value = new StringBuilder();
+                int end = i + 1;
+                while (true) {
+                    int quote = text.indexOf('\'', end);
+                    if (quote < 0) {
+                        throw new IllegalArgumentException("bad query at " + i + ": unterminated string");
+                    }
+                    value.append(text, end, quote);
+                    if (quote + 1 < text.length() && text.charAt(quote + 1) == '\'') {
+                        // a doubled quote stands for one quote in the string
+                        value.append('\'');
+                        end = quote + 2;
+                    } else {
+                        end = quote;
+                        break;
+                    }
+                }
+                tokens.add(new Token(value.toString(), true, i));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                        && "()'".indexOf(text.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(new Token(text.substring(start, i), false, start));
+            }
+        }
+        return tokens;
+    }
+
+    private static final class Token {
+        private final String text;
+        private final boolean string;
+        private final int position;
+
+        Token(String text, boolean string, int position) {
+            this.text = text;
+            this.string = string;
+            this.position = position;
+        }
+    }
+}
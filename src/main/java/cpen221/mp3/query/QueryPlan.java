@@ -0,0 +1,313 @@
+package cpen221.mp3.query;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A structured query compiled for execution. The pages meeting the query's condition are
+ * found by asking the source only for the pages meeting its most selective simple conditions,
+ * then testing each candidate, one at a time, against the rest of the condition.
+ *
+ * Abstraction Function:
+ *      root finds the pages meeting query's condition: its candidates are exactly those
+ *      pages, found starting from the conditions it estimates select the fewest pages
+ *
+ * Representation Invariant:
+ *      query != null, root != null
+ *
+ * Thread Safety:
+ *      a plan is immutable; each execution keeps what it learns from the source to itself,
+ *      so one plan may be executed by many threads at once.
+ */
+public final class QueryPlan {
+
+    /* rough numbers of pages selected by each kind of simple condition */
+    private static final int TITLE_PAGES = 1;
+    private static final int CATEGORY_PAGES = 200;
+    private static final int AUTHOR_PAGES = 1000;
+
+    private final Query query;
+    private final Node root;
+
+    private QueryPlan(Query query, Node root) {
+        this.query = query;
+        this.root = root;
+    }
+
+    /**
+     * Compile a parsed query.
+     *
+     * @param query the query to compile
+     * @return a plan for query
+     */
+    public static QueryPlan compile(Query query) {
+        return new QueryPlan(query, compile(query.condition()));
+    }
+
+    /**
+     * @return the query this plan executes
+     */
+    public Query query() {
+        return query;
+    }
+
+    /**
+     * Run the query.
+     *
+     * @param source where facts about pages come from
+     * @return the distinct items of the pages meeting the query's condition, sorted if the
+     *         query asks for it and otherwise in the order they were found
+     */
+    public List<String> execute(QuerySource source) {
+        Facts facts = new Facts(source);
+        Stream<String> pages = root.candidates(facts).distinct();
+        Stream<String> items;
+        switch (query.item()) {
+            case AUTHOR:
+                items = pages.map(facts::author).filter(Objects::nonNull);
+                break;
+            case CATEGORY:
+                items = pages.flatMap(page -> facts.categories(page).stream());
+                break;
+            default:
+                items = pages;
+        }
+        items = items.distinct();
+        if (query.order() == Query.Order.ASC) {
+            items = items.sorted();
+        } else if (query.order() == Query.Order.DESC) {
+            items = items.sorted(Comparator.reverseOrder());
+        }
+        return items.collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    /**
+     * @return a description of how the plan finds its pages
+     */
+    @Override
+    public String toString() {
+        return query.item().name().toLowerCase() + " of " + root
+                + (query.order() == Query.Order.UNSORTED ? "" : " " + query.order().name().toLowerCase());
+    }
+
+    private static Node compile(Condition condition) {
+        if (condition instanceof Condition.And) {
+            Condition.And and = (Condition.And) condition;
+            Node left = compile(and.left());
+            Node right = compile(and.right());
+            // fetch the smaller side, and test its pages against the other
+            return left.pages() <= right.pages() ? new AndNode(left, right) : new AndNode(right, left);
+        }
+        if (condition instanceof Condition.Or) {
+            Condition.Or or = (Condition.Or) condition;
+            return new OrNode(compile(or.left()), compile(or.right()));
+        }
+        return new SimpleNode((Condition.Simple) condition);
+    }
+
+    /**
+     * One condition of a plan.
+     */
+    private interface Node {
+        /**
+         * @return a lazy stream of the pages meeting the condition, possibly with repeats
+         */
+        Stream<String> candidates(Facts facts);
+
+        /**
+         * @return true if page meets the condition
+         */
+        boolean test(String page, Facts facts);
+
+        /**
+         * @return an estimate of the number of pages meeting the condition
+         */
+        int pages();
+
+        /**
+         * @return an estimate of the number of questions test asks the source
+         */
+        int cost();
+    }
+
+    private static final class SimpleNode implements Node {
+        private final Condition.Field field;
+        private final String value;
+
+        SimpleNode(Condition.Simple condition) {
+            this.field = condition.field();
+            this.value = condition.value();
+        }
+
+        @Override
+        public Stream<String> candidates(Facts facts) {
+            switch (field) {
+                case TITLE:
+                    return facts.exists(value) ? Stream.of(value) : Stream.empty();
+                case CATEGORY:
+                    return facts.members(category(value)).stream();
+                default:
+                    return facts.contributions(value).stream().filter(page -> test(page, facts));
+            }
+        }
+
+        @Override
+        public boolean test(String page, Facts facts) {
+            switch (field) {
+                case TITLE:
+                    return page.equals(value);
+                case CATEGORY:
+                    return facts.categories(page).contains(category(value));
+                default:
+                    return value.equals(facts.author(page));
+            }
+        }
+
+        @Override
+        public int pages() {
+            switch (field) {
+                case TITLE:
+                    return TITLE_PAGES;
+                case CATEGORY:
+                    return CATEGORY_PAGES;
+                default:
+                    return AUTHOR_PAGES;
+            }
+        }
+
+        @Override
+        public int cost() {
+            return field == Condition.Field.TITLE ? 0 : 1;
+        }
+
+        @Override
+        public String toString() {
+            return field.name().toLowerCase() + " is '" + value + "'";
+        }
+
+        private static String category(String name) {
+            return name.startsWith("Category:") ? name : "Category:" + name;
+        }
+    }
+
+    /**
+     * Finds the pages of seed, and keeps those that also meet filter.
+     */
+    private static final class AndNode implements Node {
+        private final Node seed;
+        private final Node filter;
+
+        AndNode(Node seed, Node filter) {
+            this.seed = seed;
+            this.filter = filter;
+        }
+
+        @Override
+        public Stream<String> candidates(Facts facts) {
+            return seed.candidates(facts).filter(page -> filter.test(page, facts));
+        }
+
+        @Override
+        public boolean test(String page, Facts facts) {
+            // ask the cheaper side first; the other is only asked if it must be
+            return seed.cost() <= filter.cost()
+                    ? seed.test(page, facts) && filter.test(page, facts)
+                    : filter.test(page, facts) && seed.test(page, facts);
+        }
+
+        @Override
+        public int pages() {
+            return seed.pages();
+        }
+
+        @Override
+        public int cost() {
+            return seed.cost() + filter.cost();
+        }
+
+        @Override
+        public String toString() {
+            return "(" + seed + " filtered by " + filter + ")";
+        }
+    }
+
+    private static final class OrNode implements Node {
+        private final Node left;
+        private final Node right;
+
+        OrNode(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Stream<String> candidates(Facts facts) {
+            return Stream.concat(left.candidates(facts), right.candidates(facts));
+        }
+
+        @Override
+        public boolean test(String page, Facts facts) {
+            return left.cost() <= right.cost()
+                    ? left.test(page, facts) || right.test(page, facts)
+                    : right.test(page, facts) || left.test(page, facts);
+        }
+
+        @Override
+        public int pages() {
+            return left.pages() + right.pages();
+        }
+
+        @Override
+        public int cost() {
+            return left.cost() + right.cost();
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " or " + right + ")";
+        }
+    }
+
+    /**
+     * The answers a source has given during one execution, so no question is asked twice.
+     */
+    private static final class Facts {
+        private final QuerySource source;
+        private final Map<String, Boolean> exists = new HashMap<>();
+        private final Map<String, String> authors = new HashMap<>();
+        private final Map<String, List<String>> categories = new HashMap<>();
+
+        Facts(QuerySource source) {
+            this.source = source;
+        }
+
+        boolean exists(String title) {
+            return exists.computeIfAbsent(title, source::exists);
+        }
+
+        String author(String title) {
+            if (!authors.containsKey(title)) {
+                authors.put(title, source.author(title));
+            }
+            return authors.get(title);
+        }
+
+        List<String> categories(String title) {
+            return categories.computeIfAbsent(title, source::categories);
+        }
+
+        List<String> members(String category) {
+            return source.members(category);
+        }
+
+        List<String> contributions(String user) {
+            return source.contributions(user);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package cpen221.mp3.query;
+
+import java.util.List;
+
+/**
+ * Where a structured query gets its facts about Wikipedia pages.
+ * Categories are named with their "Category:" prefix, as Wikipedia names them.
+ */
+public interface QuerySource {
+
+    /**
+     * @return true if a page titled title exists
+     */
+    boolean exists(String title);
+
+    /**
+     * @return the most recent author of the page titled title, or null if there is no such page
+     */
+    String author(String title);
+
+    /**
+     * @return the categories the page titled title is in
+     */
+    List<String> categories(String title);
+
+    /**
+     * @param category a category, with its "Category:" prefix
+     * @return the titles of the pages in category
+     */
+    List<String> members(String category);
+
+    /**
+     * @return the titles of pages user has edited; a superset of those user edited last
+     */
+    List<String> contributions(String user);
+}
@@ -0,0 +1,189 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.cache.NoSuchObjectException;
+import cpen221.mp3.wikimediator.WikiMediator;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Turns the text of a request into its reply by performing it with a WikiMediator.
+ * Shared by the server front ends so that they all speak the same protocol, including
+ * which requests they take: the requests of one frame, a lone request or a batch, are
+ * admitted as a unit, all of them or none, so that a batch is never answered in part
+ * with "busy" replies.
+ *
+ * Abstraction Function:
+ *      mediator performs every request this handler is given
+ *      capacity's permits are the requests that may still be admitted before the server
+ *          is busy; each admitted request holds one until it is done
+ *
+ * Representation Invariant:
+ *      mediator != null, capacity != null
+ *
+ * Thread Safety:
+ *      mediator is thread-safe and capacity is a Semaphore, whose permits are taken for a
+ *      whole frame at once, so requests may be handled on any number of threads at once.
+ */
+class RequestHandler {
+
+    private final WikiMediator mediator;
+    private final Semaphore capacity;
+
+    /**
+     * @param mediator the mediator that performs every request
+     * @param capacity the number of requests that may be processed or waiting at once,
+     *                 requires capacity >= 0
+     */
+    RequestHandler(WikiMediator mediator, int capacity) {
+        this.mediator = mediator;
+        this.capacity = new Semaphore(capacity);
+    }
+
+    /**
+     * Admit the requests of one frame as a unit. A frame of more requests than the
+     * handler's whole capacity is never admitted.
+     *
+     * @param requests the number of requests in the frame, requires requests >= 0
+     * @return true if every request of the frame was admitted, each of which must then be
+     *         finished by done(); false if none was, and each should be answered with busy
+     */
+    boolean admit(int requests) {
+        return capacity.tryAcquire(requests);
+    }
+
+    /**
+     * Finish an admitted request, once its reply has been sent or it was turned away.
+     */
+    void done() {
+        capacity.release();
+    }
+
+    /**
+     * Parse the text of a frame sent by a client: either one request, a JSON object,
+     * or a batch of requests, a JSON array of objects.
+     *
+     * @return the requests in the frame, in the order they were sent
+     * @throws JSONException if the frame is not a request or a batch of requests
+     */
+    static List<JSONObject> requests(String text) throws JSONException {
+        JSONTokener tokener = new JSONTokener(text);
+        Object frame = tokener.nextValue();
+        if (tokener.nextClean() != 0) {
+            throw tokener.syntaxError("text after the end of the request");
+        }
+        if (frame instanceof JSONObject) {
+            return Collections.singletonList((JSONObject) frame);
+        }
+        if (!(frame instanceof JSONArray)) {
+            throw new JSONException("a request must be a JSON object or an array of them");
+        }
+        JSONArray batch = (JSONArray) frame;
+        List<JSONObject> requests = new ArrayList<>(batch.length());
+        for (int i = 0; i < batch.length(); i++) {
+            requests.add(batch.getJSONObject(i));
+        }
+        return requests;
+    }
+
+    /**
+     * Process one request, turning any failure into a "failed" reply.
+     */
+    JSONObject respond(JSONObject x) {
+        try {
+            // compute answer and send back to client
+            return process(x);
+        } catch (NoSuchObjectException e) {
+            return failed(x.opt("id"), "unknown request type");
+        } catch (RuntimeException | IOException e) {
+            return failed(x.opt("id"), String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * @param id the id of the request being turned away, or null if unknown
+     * @return a reply telling the client the server is too busy
+     */
+    static JSONObject busy(Object id) {
+        JSONObject busy = new JSONObject();
+        busy.put("id", id == null ? JSONObject.NULL : id);
+        busy.put("status", "busy");
+        busy.put("response", "server is busy, try again later");
+        return busy;
+    }
+
+    static JSONObject failed(Object id, String message) {
+        JSONObject failed = new JSONObject();
+        failed.put("id", id == null ? JSONObject.NULL : id);
+        failed.put("status", "failed");
+        failed.put("response", message);
+        return failed;
+    }
+
+    /**
+     * Parse the request, get response from WikiMediator and
+     * add a response field to the JSONObject
+     *
+     * @param n indicates the request passed
+     * @return A new JSONObject with response field
+     * @throws NoSuchObjectException if n is not a known type of request
+     */
+    JSONObject process(JSONObject n) throws NoSuchObjectException, IOException {
+        // the reply carries the request's id unchanged so clients can match them up
+        JSONObject result = new JSONObject();
+        Object id = n.opt("id");
+        result.put("id", id == null ? JSONObject.NULL : id);
+        result.put("status", "success");
+        String type = n.getString("type").replaceAll(",", "");
+        WikiMediator process = this.mediator;
+
+        if (type.equals("simpleSearch")){
+            String query = n.getString("query").replaceAll(",", "");
+            int limit = n.optInt("limit");
+            List<String> response = process.simpleSearch(query, limit);
+            result.put("response", response);
+        }
+        else if (type.equals("getPage")){
+            String query = n.getString("query").replaceAll(",", "");
+            String response = process.getPage(query);
+            result.put("response", response);
+        }
+        else if (type.equals("getConnectedPages")){
+            String query = n.getString("query").replaceAll(",", "");
+            int hops = n.optInt("hops");
+            List<String> response = process.getConnectedPages(query, hops);
+            result.put("response", response);
+        }
+        else if (type.equals("executeQuery")){
+            // commas are kept: they may be part of a quoted title
+            String query = n.getString("query");
+            List<String> response = process.executeQuery(query);
+            result.put("response", response);
+        }
+        else if (type.equals("zeitgeist")){
+            int limit = n.optInt("limit");
+            List<String> response = process.zeitgeist(limit);
+            result.put("response", response);
+        }
+        else if (type.equals("trending")){
+            int limit = n.optInt("limit");
+            List<String> response = process.trending(limit);
+            result.put("response", response);
+        }
+        else if (type.equals("peakLoad30s")){
+            int response = process.peakLoad30s();
+            result.put("response", response);
+        }
+        else
+            throw new NoSuchObjectException();
+
+        return result;
+    }
+}
@@ -0,0 +1,267 @@
+package cpen221.mp3.server;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WikiMediatorAsyncClient sends requests to a WikiMediatorServer without waiting for
+ * their replies, over one or more connections, and completes a future for each request
+ * when its reply arrives. Many requests may be in flight on each connection at once.
+ *
+ * Requests are sent with an id chosen by the client so that replies can be matched up
+ * even if the caller reuses ids; each reply is given back the id of the request it answers.
+ * A reply that answers none of the requests in flight, such as the server's reply to a frame
+ * it could not read, is a protocol error: it fails every request in flight on its connection,
+ * which is then closed.
+ * A new WikiMediatorAsyncClient is "open" until the close() method is called,
+ * at which point it is "closed" and may not be used further.
+ *
+ * Abstraction Function:
+ *      connections are the connections to the server, used in turn for each call
+ *      a connection's pending maps the id a request was sent with to the request's
+ *      own id and the future its reply completes
+ *
+ * Representation Invariant:
+ *      connections is non-empty and every element != null
+ *      wire ids are unique among all requests ever sent by this client
+ *
+ * Thread Safety:
+ *      any number of threads may send requests at once. Each connection's frames are
+ *      written while holding its writer's lock, and its replies are read by its own daemon
+ *      thread, which completes futures; pending maps are concurrent.
+ */
+public class WikiMediatorAsyncClient {
+
+    private final List<Connection> connections = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong wireIds = new AtomicLong();
+
+    /**
+     * Make a WikiMediatorAsyncClient with one connection to a server running on
+     * hostname at the specified port.
+     *
+     * @throws IOException if can't connect
+     */
+    public WikiMediatorAsyncClient(String hostname, int port) throws IOException {
+        this(hostname, port, 1);
+    }
+
+    /**
+     * Make a WikiMediatorAsyncClient that spreads its requests over several connections
+     * to a server running on hostname at the specified port.
+     *
+     * @param connections the number of connections to open, requires connections > 0
+     * @throws IOException if can't connect
+     */
+    public WikiMediatorAsyncClient(String hostname, int port, int connections) throws IOException {
+        try {
+            for (int i = 0; i < connections; i++) {
+                this.connections.add(new Connection(new Socket(hostname, port)));
+            }
+        } catch (IOException ioe) {
+            // the connections made so far are closed here rather than by the overridable close()
+            for (Connection connection : this.connections) {
+                connection.close();
+            }
+            throw ioe;
+        }
+    }
+
+    /**
+     * Send a request to the server. Requires this is "open".
+     *
+     * @param request a request as a JSONObject; it is not modified
+     * @return a future completed with the reply to request, which carries request's id,
+     *         or completed exceptionally with an IOException if the connection fails first,
+     *         or the server sends a reply that answers no request in flight
+     */
+    public CompletableFuture<JSONObject> send(JSONObject request) {
+        return sendAll(List.of(request)).get(0);
+    }
+
+    /**
+     * Send several requests to the server as one batch, written to the connection at once.
+     * The server admits a batch as a unit: if it has no room for all of its requests, each
+     * is answered with a "busy" status, so a batch should be no larger than the number of
+     * requests the server may have processing and waiting at once. Otherwise it answers each
+     * request of the batch on its own, so the futures may complete in any order.
+     * Requires this is "open".
+     *
+     * @param requests the requests to send; they are not modified
+     * @return a future for each request's reply, in the same order as requests
+     */
+    public List<CompletableFuture<JSONObject>> sendAll(List<JSONObject> requests) {
+        Connection connection = connections.get(Math.floorMod(next.getAndIncrement(), connections.size()));
+        List<CompletableFuture<JSONObject>> futures = new ArrayList<>(requests.size());
+        JSONArray batch = new JSONArray();
+        for (JSONObject request : requests) {
+            long wireId = wireIds.incrementAndGet();
+            Pending pending = new Pending(request.opt("id"));
+            connection.pending.put(wireId, pending);
+            futures.add(pending.reply);
+            batch.put(copyWithId(request, wireId));
+        }
+        // a lone request is sent as an object, so that any server version understands it
+        connection.write(batch.length() == 1 ? batch.get(0) : batch);
+        return futures;
+    }
+
+    /**
+     * @return the number of requests sent whose replies have not yet arrived
+     */
+    public int inFlight() {
+        int n = 0;
+        for (Connection connection : connections) {
+            n += connection.pending.size();
+        }
+        return n;
+    }
+
+    /**
+     * Closes the client's connections to the server. Requests still in flight complete
+     * exceptionally. This client is now "closed".
+     */
+    public void close() {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private static JSONObject copyWithId(JSONObject request, long id) {
+        JSONObject copy = new JSONObject();
+        for (String key : request.keySet()) {
+            copy.put(key, request.get(key));
+        }
+        copy.put("id", id);
+        return copy;
+    }
+
+    /**
+     * A request in flight: its own id, and the future its reply completes.
+     */
+    private static final class Pending {
+        private final Object id;
+        private final CompletableFuture<JSONObject> reply = new CompletableFuture<>();
+
+        Pending(Object id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * One connection to the server and the requests in flight on it.
+     */
+    private static final class Connection {
+        private final Socket socket;
+        private final Writer out;
+        private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+        private volatile IOException failure;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Thread reader = new Thread(() -> read(in), "wikimediator-client-" + socket.getLocalPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Write one frame, failing every request in flight if it cannot be sent.
+         */
+        void write(Object frame) {
+            try {
+                synchronized (out) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    out.write(frame.toString());
+                    out.write("\n\n");
+                    out.flush();
+                }
+            } catch (IOException ioe) {
+                fail(ioe);
+            }
+        }
+
+        /**
+         * Complete the future of every reply the server sends, until the connection ends.
+         */
+        private void read(BufferedReader in) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        complete(line);
+                    }
+                }
+                fail(new IOException("connection terminated unexpectedly"));
+            } catch (IOException ioe) {
+                fail(ioe);
+            }
+        }
+
+        private void complete(String line) {
+            JSONObject reply;
+            try {
+                reply = new JSONObject(line);
+            } catch (JSONException e) {
+                fail(new IOException("malformatted reply: " + line));
+                return;
+            }
+            Pending p = reply.has("id") ? pending.remove(reply.optLong("id", -1)) : null;
+            if (p == null) {
+                // a reply to a frame the server could not read: the requests it answers
+                // are among those in flight, but which of them cannot be told
+                fail(new IOException("unmatched reply: " + line));
+                return;
+            }
+            reply.put("id", p.id == null ? JSONObject.NULL : p.id);
+            if (!reply.has("status")) {
+                reply.put("status", reply.has("response") ? "success" : "failed");
+            }
+            p.reply.complete(reply);
+        }
+
+        /**
+         * Fail every request in flight on this connection, and any sent after.
+         */
+        private void fail(IOException cause) {
+            if (failure == null) {
+                failure = cause;
+            }
+            for (Long wireId : pending.keySet()) {
+                Pending p = pending.remove(wireId);
+                if (p != null) {
+                    p.reply.completeExceptionally(failure);
+                }
+            }
+            close();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // the connection is unusable either way
+            }
+        }
+    }
+}
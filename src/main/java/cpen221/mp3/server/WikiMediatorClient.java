@@ -1,12 +1,16 @@
 package cpen221.mp3.server;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * WikiMediatorClient is a client that sends requests to the WikiMediatorServer
  * and interprets its replies.
+ * Any number of requests can be sent over one connection, without waiting for
+ * replies; each reply carries the id of the request it answers.
  * A new WikiMediatorClient is "open" until the close() method is called,
  * at which point it is "closed" and may not be used further.
  */
@@ -25,8 +29,8 @@ public class WikiMediatorClient {
 
     public WikiMediatorClient(String hostname, int port) throws IOException {
         socket = new Socket(hostname, port);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
     }
 
     /**
@@ -36,41 +40,35 @@ public class WikiMediatorClient {
      */
 
     public void sendRequest(JSONObject x) throws IOException {
-        System.out.println("request is sent");
         this.out.print(x + "\n" + "\n");
         this.out.flush(); // important! make sure x actually gets sent
     }
 
     /**
-     * Get a reply from the next request that was submitted.
+     * Get the next reply the server sends. Replies may not arrive in the order the
+     * requests were sent; use the reply's id to tell which request it answers.
      * Requires that "this" is open.
      * @return requested result as a JSONObject
      * @throws IOException if network or server failure
      */
 
     public JSONObject getReply() throws IOException {
-        System.out.println("fetching reply...");
-        String line = "";
+        String line;
+        do {
+            line = this.in.readLine();
+            if (line == null) {
+                throw new IOException("connection terminated unexpectedly");
+            }
+        } while (line.isEmpty());
 
-        StringBuilder responseStrBuilder = new StringBuilder();
-
-        while((line = this.in.readLine()) != null){
-            responseStrBuilder.append(line);
-            System.err.println("reply: " + line);
-        }
-
-        JSONObject reply = new JSONObject(responseStrBuilder.toString());
-
-        if (reply.get("response") == null) {
-            reply.put("status", "failed");
-            //throw new IOException("connection terminated unexpectedly");
-        }
         try {
-            //return new JSONObject(reply);
-            reply.put("status", "success");
+            JSONObject reply = new JSONObject(line);
+            if (!reply.has("status")) {
+                reply.put("status", reply.has("response") ? "success" : "failed");
+            }
             return reply;
-        } catch (NumberFormatException nfe) {
-            throw new IOException("malformatted reply: " + reply);
+        } catch (JSONException e) {
+            throw new IOException("malformatted reply: " + line);
         }
     }
 
@@ -109,10 +107,9 @@ public class WikiMediatorClient {
 
             JSONObject y = client.getReply();
             System.out.println(y);
-            //System.out.println("response("+x+") = "+y.get("response"));
 
-            /*JSONObject y2 = client.getReply();
-            System.out.println(y2);*/
+            JSONObject y2 = client.getReply();
+            System.out.println(y2);
             client.close();
         } catch (IOException ioe) {
             ioe.printStackTrace();
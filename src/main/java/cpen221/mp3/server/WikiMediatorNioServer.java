@@ -0,0 +1,469 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.wikimediator.WikiMediator;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A front end for a WikiMediator that speaks the same protocol as WikiMediatorServer,
+ * but watches every connection from one selector thread with non-blocking I/O instead
+ * of parking a thread on each socket. Only complete requests reach the worker pool, so
+ * the number of connections is independent of the number of threads, and an idle
+ * connection costs only its partly received request and any replies not yet sent.
+ *
+ * Abstraction Function:
+ *      channel accepts connections, and the selector thread running serve() reads from and
+ *      writes to every connected client. Bytes read from a client are appended to its
+ *      Connection's pending input until a blank line ends a request, or a batch of them;
+ *      each request is then handed to workers, which run it through handler, and its reply
+ *      is queued on the Connection as one line to be written when the client can take it.
+ *      'number' workers process requests, with up to queueSize more waiting; the requests of a
+ *      frame, a lone request or a batch, are admitted together by handler, and all answered with
+ *      a "busy" status by the selector thread if they would not fit.
+ *      the selector thread reads into readBuffer, one direct buffer shared by all connections.
+ *      once serving, mediator is checkpointed every WikiMediatorServer.CHECKPOINT_PERIOD seconds
+ *      by checkpointer, and once more on shutdown.
+ *
+ * Representation Invariant:
+ *      number > 0
+ *      channel, selector, readBuffer, workers, handler, mediator, checkpointer and changed != null
+ *      a Connection's input holds no complete request once the selector has read from it
+ *      a Connection's input never holds more than MAX_REQUEST bytes
+ *      a Connection's lineStart <= scanned <= length, and no newline is in input[lineStart..scanned)
+ *
+ * Thread Safety:
+ *      channels, keys and each Connection's input are used only by the selector thread.
+ *      Workers only add to a Connection's queue of replies, which is concurrent, and to
+ *      changed, then wake the selector, which alone changes what a key is waiting for.
+ */
+public class WikiMediatorNioServer {
+
+    /* the selector reads up to 16KB at a time */
+    private static final int READ_BUFFER = 16 * 1024;
+    /* a request larger than 1MB closes its connection */
+    public static final int MAX_REQUEST = 1024 * 1024;
+
+    public int number;
+    private final ServerSocketChannel channel;
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+    private final ExecutorService workers;
+    private final WikiMediator mediator;
+    private final RequestHandler handler;
+    private final ScheduledExecutorService checkpointer;
+    private final Queue<Connection> changed = new ConcurrentLinkedQueue<>();
+    private volatile boolean draining;
+    private volatile boolean stopped;
+
+    /**
+     * Start a server at a given port number, with the ability to process
+     * up to n requests concurrently. The server's mediator starts from the
+     * cache and statistics saved in WikiMediatorServer.LOCAL_DIR.
+     *
+     * @param port the port number to bind the server to
+     *             port number, requires 0 <= port <= 65535
+     * @param n the number of requests processed at once, requires n > 0
+     */
+    public WikiMediatorNioServer(int port, int n) throws IOException {
+        this(port, n, WikiMediatorServer.WIKIMEDIATOR_QUEUE, new WikiMediator(WikiMediatorServer.LOCAL_DIR));
+    }
+
+    /**
+     * Start a server at a given port number, with the ability to process
+     * up to n requests concurrently, that performs every request with mediator.
+     *
+     * @param port the port number to bind the server to
+     *             port number, requires 0 <= port <= 65535
+     * @param n the number of requests processed at once, requires n > 0
+     * @param queueSize the number of requests that may wait for one of the n workers
+     *                  before new requests are told the server is busy, requires queueSize >= 0;
+     *                  a batch of more than n + queueSize requests is always turned away
+     * @param mediator the thread-safe mediator shared by all connections
+     */
+    public WikiMediatorNioServer(int port, int n, int queueSize, WikiMediator mediator) throws IOException {
+        this.number = n;
+        this.mediator = mediator;
+        // the handler admits requests, so the workers' queue never holds more than queueSize
+        this.handler = new RequestHandler(mediator, n + queueSize);
+        this.workers = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        this.selector = Selector.open();
+        this.channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int port() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Save the mediator's cache and statistics, reporting rather than throwing failures.
+     */
+    public void checkpoint() {
+        try {
+            mediator.checkpoint();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Run the selector loop on the calling thread, accepting connections and handling
+     * their requests. Returns once shutdown has been called.
+     *
+     * @throws IOException if the selector or the server channel is broken
+     */
+    public void serve() throws IOException {
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, WikiMediatorServer.CHECKPOINT_PERIOD,
+                WikiMediatorServer.CHECKPOINT_PERIOD, TimeUnit.SECONDS);
+        try {
+            while (!stopped) {
+                selector.select();
+                Connection c;
+                while ((c = changed.poll()) != null) {
+                    c.updateInterest();
+                }
+                if (draining && channel.isOpen()) {
+                    channel.close();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException ioe) {
+                        // the client has gone away; nothing more can be sent to it
+                        connection.close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (ClosedSelectorException e) {
+            return;
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Stop accepting connections and requests, wait for the requests already received
+     * to be answered, then disconnect every client and save the mediator.
+     *
+     * @param timeout the longest time, in milliseconds, to wait for received requests
+     * @return true if every received request was answered within the timeout
+     * @throws IOException if the mediator cannot be saved
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout) throws IOException, InterruptedException {
+        draining = true;
+        selector.wakeup();
+        workers.shutdown();
+        boolean drained = workers.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        stopped = true;
+        selector.wakeup();
+        checkpointer.shutdown();
+        mediator.checkpoint();
+        return drained;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = channel.accept();
+        if (client == null) {
+            return;
+        }
+        client.configureBlocking(false);
+        Connection connection = new Connection(client);
+        connection.key = client.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * Flush what can be flushed without blocking, then close every channel.
+     */
+    private void closeAll() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                try {
+                    connection.write();
+                } catch (IOException ignored) {
+                    // closing anyway
+                }
+                connection.close();
+            }
+        }
+        channel.close();
+        selector.close();
+    }
+
+    /**
+     * The state of one client connection.
+     */
+    private final class Connection {
+        private final SocketChannel client;
+        private SelectionKey key;
+        /* bytes received but not yet part of a complete request */
+        private byte[] input = new byte[512];
+        private int length;
+        /* where the search for the end of the current request resumes, and the start of its line */
+        private int scanned;
+        private int lineStart;
+        /* replies ready to be sent, and the one being sent */
+        private final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<>();
+        private ByteBuffer sending;
+        /* requests handed to workers and not yet answered */
+        private final AtomicInteger inFlight = new AtomicInteger();
+        /* true once no more requests will be read from the client */
+        private boolean finished;
+
+        Connection(SocketChannel client) {
+            this.client = client;
+        }
+
+        /**
+         * Read what the client has sent and dispatch every request it completes.
+         */
+        void read() throws IOException {
+            if (draining) {
+                // requests arriving during shutdown are not taken
+                stopReading();
+                return;
+            }
+            readBuffer.clear();
+            int n = client.read(readBuffer);
+            if (n < 0) {
+                // the client has finished; its last request need not end with a blank line
+                if (hasText(0, length)) {
+                    dispatch(new String(input, 0, length, StandardCharsets.UTF_8));
+                }
+                stopReading();
+                return;
+            }
+            readBuffer.flip();
+            if (length + n > MAX_REQUEST) {
+                enqueue(RequestHandler.failed(null, "request too large"));
+                stopReading();
+                return;
+            }
+            if (length + n > input.length) {
+                input = Arrays.copyOf(input, Math.max(length + n, input.length * 2));
+            }
+            readBuffer.get(input, length, n);
+            length += n;
+            frame();
+        }
+
+        private void stopReading() {
+            finished = true;
+            input = new byte[0];
+            length = 0;
+            scanned = 0;
+            lineStart = 0;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            updateInterest();
+        }
+
+        /**
+         * Split off every complete request at the front of input.
+         * A request ends at a line that is empty, or holds only a carriage return.
+         */
+        private void frame() {
+            int start = 0;
+            for (int i = scanned; i < length; i++) {
+                if (input[i] != '\n') {
+                    continue;
+                }
+                boolean blank = i == lineStart || (i == lineStart + 1 && input[lineStart] == '\r');
+                if (blank) {
+                    if (hasText(start, lineStart)) {
+                        dispatch(new String(input, start, lineStart - start, StandardCharsets.UTF_8));
+                    }
+                    start = i + 1;
+                }
+                lineStart = i + 1;
+            }
+            scanned = length;
+            if (start == 0) {
+                return;
+            }
+            // keep the unfinished request at the front of input
+            System.arraycopy(input, start, input, 0, length - start);
+            length -= start;
+            scanned -= start;
+            lineStart -= start;
+            if (input.length > 512 && length < input.length / 4) {
+                input = Arrays.copyOf(input, Math.max(512, length));
+            }
+        }
+
+        private boolean hasText(int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (!Character.isWhitespace(input[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void dispatch(String text) {
+            List<JSONObject> requests;
+            try {
+                requests = RequestHandler.requests(text);
+            } catch (JSONException e) {
+                enqueue(RequestHandler.failed(null, "malformed request: " + e.getMessage()));
+                updateInterest();
+                return;
+            }
+            if (!handler.admit(requests.size())) {
+                for (JSONObject x : requests) {
+                    enqueue(RequestHandler.busy(x.opt("id")));
+                }
+                updateInterest();
+                return;
+            }
+            // each request of a batch is processed and answered on its own
+            for (JSONObject x : requests) {
+                inFlight.incrementAndGet();
+                try {
+                    workers.execute(() -> {
+                        JSONObject y;
+                        try {
+                            y = handler.respond(x);
+                        } finally {
+                            handler.done();
+                        }
+                        enqueue(y);
+                        inFlight.decrementAndGet();
+                        changed.add(this);
+                        selector.wakeup();
+                    });
+                } catch (RejectedExecutionException ree) {
+                    handler.done();
+                    inFlight.decrementAndGet();
+                    enqueue(RequestHandler.busy(x.opt("id")));
+                }
+            }
+            updateInterest();
+        }
+
+        private void enqueue(JSONObject reply) {
+            replies.add(ByteBuffer.wrap((reply + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * Write as many queued replies as the client will take without blocking.
+         */
+        void write() throws IOException {
+            while (true) {
+                if (sending == null || !sending.hasRemaining()) {
+                    sending = replies.poll();
+                    if (sending == null) {
+                        break;
+                    }
+                }
+                client.write(sending);
+                if (sending.hasRemaining()) {
+                    break;
+                }
+            }
+            updateInterest();
+        }
+
+        /**
+         * Wait for the client to accept writes exactly when there is something to send.
+         * Called only on the selector thread.
+         */
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            boolean pending = (sending != null && sending.hasRemaining()) || !replies.isEmpty();
+            int ops = key.interestOps();
+            key.interestOps(pending ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+            if (!pending) {
+                closeIfDone();
+            }
+        }
+
+        /**
+         * Close the connection once the client has stopped sending and every
+         * request it sent has been answered.
+         */
+        private void closeIfDone() {
+            if (finished && inFlight.get() == 0 && replies.isEmpty()
+                    && (sending == null || !sending.hasRemaining())) {
+                close();
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Start a WikiMediatorNioServer running on the default port.
+     */
+    public static void main(String[] args) {
+        try {
+            WikiMediatorNioServer server = new WikiMediatorNioServer(
+                    WikiMediatorServer.WIKIMEDIATOR_PORT, WikiMediatorServer.WIKIMEDIATOR_N);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.shutdown(WikiMediatorServer.SHUTDOWN_TIMEOUT);
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }));
+            server.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -3,12 +3,26 @@ package cpen221.mp3.server;
 import com.google.gson.Gson;
 import cpen221.mp3.cache.NoSuchObjectException;
 import cpen221.mp3.wikimediator.WikiMediator;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static fastily.jwiki.util.GSONP.gson;
 
@@ -19,13 +33,27 @@ import static fastily.jwiki.util.GSONP.gson;
  * Abstraction Function:
  *      WIKIMEDIATOR_PORT represents the default port number of the server
  *      serverSocket is the socket the server will use to handle input and output streams
+ *      a connection stays open for any number of requests until the client has stopped
+ *      sending and every request it sent has been answered.
+ *      connections runs a reader for each connection in open, and workers processes the
+ *      requests the readers receive, either
+ *          on pools of platform threads: at most MAX_CONNECTIONS readers, and 'number' workers
+ *              with up to queueSize further requests waiting in their queue; a connection beyond
+ *              that limit is turned away with a "busy" status, as are all the requests of a
+ *              frame, a lone request or a batch, that would not fit in the workers and queue, or
+ *          on a new virtual thread per connection and per request, in which case any number of
+ *              connections are held and the mediator's upstream limit of 'number' caps the work
+ *              done at once
+ *      mediator is the single WikiMediator that performs every request, so that its cache
+ *          and statistics cover all clients; once serving, it is checkpointed to LOCAL_DIR
+ *          every CHECKPOINT_PERIOD seconds by checkpointer
  *      request is a JSON object with the task that is to be performed through the server
  *      response is a JSON object that returns the result of performing the requested task
  *
  * Representation Invariant:
- *      WIKIMEDIATOR_N > 0
+ *      WIKIMEDIATOR_N > 0, number > 0, WIKIMEDIATOR_QUEUE >= 0
  *      1 < WIKIMEDIATOR_PORT < 65535
- *      serverSocket != null
+ *      serverSocket, open, connections, workers, mediator and checkpointer != null
  *      request and response are both non-null and contain an 'id'
  *      request should also include the type of request (ie. task to perform) and any
  *          other appropriate arguments
@@ -38,56 +66,228 @@ public class WikiMediatorServer {
 
     public static final int WIKIMEDIATOR_PORT = 4949;
     public static final int WIKIMEDIATOR_N = 1;
+    /* the directory where the mediator's cache and statistics are saved */
+    public static final File LOCAL_DIR = new File("local");
+    /* the mediator is saved to LOCAL_DIR every 60s */
+    public static final int CHECKPOINT_PERIOD = 60;
+    /* by default 64 connections may wait for a worker */
+    public static final int WIKIMEDIATOR_QUEUE = 64;
+    /* on shutdown, requests already received get up to 10s to finish */
+    public static final long SHUTDOWN_TIMEOUT = 10000;
+    /* with platform threads, at most 256 clients are connected at once */
+    public static final int MAX_CONNECTIONS = 256;
     public int number;
     private ServerSocket serverSocket;
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private final ExecutorService connections;
+    private final ExecutorService workers;
+    private final WikiMediator mediator;
+    private final RequestHandler handler;
+    private final ScheduledExecutorService checkpointer;
 
     /**
      * Start a server at a given port number, with the ability to process
-     * up to n requests concurrently.
+     * up to n requests concurrently. The server's mediator starts from the
+     * cache and statistics saved in LOCAL_DIR.
      *
      * @param port the port number to bind the server to
      *             port number, requires 0 <= port <= 65535
      */
     public WikiMediatorServer(int port, int n) throws IOException {
+        this(port, n, WIKIMEDIATOR_QUEUE, new WikiMediator(LOCAL_DIR));
+    }
+
+    /**
+     * Start a server at a given port number, with the ability to process
+     * up to n requests concurrently, that performs every request with mediator.
+     *
+     * @param port the port number to bind the server to
+     *             port number, requires 0 <= port <= 65535
+     * @param n the number of requests processed at once, requires n > 0
+     * @param queueSize the number of requests that may wait for one of the n workers
+     *                  before new requests are told the server is busy, requires queueSize >= 0;
+     *                  a batch of more than n + queueSize requests is always turned away
+     * @param mediator the thread-safe mediator shared by all connections
+     */
+    public WikiMediatorServer(int port, int n, int queueSize, WikiMediator mediator) throws IOException {
+        // the handler admits requests, so the workers' queue never holds more than queueSize
+        this(port, n,
+                new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS, new SynchronousQueue<>()),
+                new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()),
+                n + queueSize, mediator);
+    }
+
+    /**
+     * Start a server at a given port number that handles every connection on its own
+     * virtual thread, so that idle and slow clients cost little, while making at most n
+     * requests to Wikipedia at once. The server's mediator starts from the cache and
+     * statistics saved in LOCAL_DIR.
+     *
+     * @param port the port number to bind the server to
+     *             port number, requires 0 <= port <= 65535
+     * @param n the number of concurrent requests to Wikipedia, requires n > 0
+     * @return a server that has not started serving
+     * @throws IOException if the port cannot be bound or the snapshot cannot be read
+     */
+    public static WikiMediatorServer withVirtualThreads(int port, int n) throws IOException {
+        return withVirtualThreads(port, n, new WikiMediator(LOCAL_DIR, n));
+    }
+
+    /**
+     * Start a server at a given port number that handles every connection on its own
+     * virtual thread and performs every request with mediator.
+     *
+     * @param port the port number to bind the server to
+     *             port number, requires 0 <= port <= 65535
+     * @param n the number of concurrent requests to Wikipedia the mediator allows
+     * @param mediator the thread-safe mediator shared by all connections
+     * @return a server that has not started serving
+     * @throws IOException if the port cannot be bound
+     */
+    public static WikiMediatorServer withVirtualThreads(int port, int n, WikiMediator mediator)
+            throws IOException {
+        return new WikiMediatorServer(port, n, Executors.newVirtualThreadPerTaskExecutor(),
+                Executors.newVirtualThreadPerTaskExecutor(), Integer.MAX_VALUE, mediator);
+    }
+
+    private WikiMediatorServer(int port, int n, ExecutorService connections, ExecutorService workers,
+                               int capacity, WikiMediator mediator) throws IOException {
         serverSocket = new ServerSocket(port);
         this.number = n;
+        this.connections = connections;
+        this.workers = workers;
+        this.mediator = mediator;
+        this.handler = new RequestHandler(mediator, capacity);
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Save the mediator's cache and statistics, reporting rather than throwing failures.
+     */
+    public void checkpoint() {
+        try {
+            mediator.checkpoint();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int port() {
+        return serverSocket.getLocalPort();
     }
 
     /**
      * Run the server, listening for connections and handling them.
+     * Returns once shutdown has been called.
      *
      * @throws IOException if the main server socket is broken
      */
     public void serve() throws IOException {
-        while (true) {
+        checkpointer.scheduleWithFixedDelay(this::checkpoint,
+                CHECKPOINT_PERIOD, CHECKPOINT_PERIOD, TimeUnit.SECONDS);
+        while (!serverSocket.isClosed()) {
             // block until a client connects
-
-            System.out.println("serving...");
-            final Socket socket = serverSocket.accept();
-            // create a new thread to handle that client
-            Thread handler = new Thread(new Runnable() {
-                public void run() {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException se) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                throw se;
+            }
+            // give the client a reader thread, or turn it away if there are too many clients
+            open.add(socket);
+            try {
+                connections.execute(() -> {
                     try {
-                        try {
-                            handle(socket);
-                        } finally {
-                            socket.close();
-                        }
+                        handle(socket);
                     } catch (IOException ioe) {
                         // this exception wouldn't terminate serve(),
                         // since we're now on a different thread, but
-                        // we still need to handle it
-                        ioe.printStackTrace();
+                        // we still need to handle it; a reader whose
+                        // connection was closed by shutdown is expected to fail
+                        if (!serverSocket.isClosed()) {
+                            ioe.printStackTrace();
+                        }
                     }
-                }
-            });
-            // start the thread
-            handler.start();
+                });
+            } catch (RejectedExecutionException ree) {
+                open.remove(socket);
+                rejectBusy(socket);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting connections and requests, wait for the requests already received
+     * to be answered, then disconnect every client and save the mediator.
+     *
+     * @param timeout the longest time, in milliseconds, to wait for received requests
+     * @return true if every received request was answered within the timeout
+     * @throws IOException if the server socket cannot be closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout) throws IOException, InterruptedException {
+        serverSocket.close();
+        for (Socket socket : open) {
+            // readers see the end of the stream and stop taking requests
+            try {
+                socket.shutdownInput();
+            } catch (IOException ioe) {
+                // its connection has just closed
+            }
+        }
+        workers.shutdown();
+        boolean drained = workers.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        for (Socket socket : open) {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // its connection has just closed
+            }
+        }
+        connections.shutdown();
+        checkpointer.shutdown();
+        checkpoint();
+        return drained;
+    }
+
+    /**
+     * Tell a client the server is too busy to take any requests, and disconnect it.
+     *
+     * @param socket socket where client is connected
+     */
+    private void rejectBusy(Socket socket) {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()))) {
+            out.println(RequestHandler.busy(null));
+        } catch (IOException ioe) {
+            // the client is being dropped either way
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 
     /**
      * Handle one client connection. Returns when client disconnects.
+     * The client may send any number of requests, each a JSON object followed by a
+     * blank line, without waiting for replies. A JSON array of requests followed by a
+     * blank line is a batch, whose requests are admitted together but answered one by one.
+     * Each request is processed by a worker as
+     * soon as one is free, and its reply is written as one line, carrying the request's id,
+     * when it is ready; replies may therefore arrive in a different order than requests.
+     * Once the client has stopped sending, the connection is closed by whichever of this
+     * reader and the workers finishes last.
      *
      * @param socket
      *            socket where client is connected
@@ -96,53 +296,138 @@ public class WikiMediatorServer {
      * reference: https://stackoverflow.com/questions/22461663/convert-inputstream-to-jsonobject
      */
     private void handle(Socket socket) throws IOException {
-        System.err.println("client connected");
+        Connection connection;
+        BufferedReader in;
+        try {
+            connection = new Connection(socket);
+            // get the socket's input stream, and wrap converters around it
+            // that convert it from a byte stream to a character stream,
+            // and that buffer it so that we can read one line at a time
+            in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+        } catch (IOException ioe) {
+            open.remove(socket);
+            socket.close();
+            throw ioe;
+        }
 
-        // get the socket's input stream, and wrap converters around it
-        // that convert it from a byte stream to a character stream,
-        // and that buffer it so that we can read one line at a time
-        BufferedReader in = new BufferedReader(new InputStreamReader(
-               socket.getInputStream()));
-        String line = "";
+        try {
+            String request;
+            while ((request = readRequest(in)) != null) {
+                List<JSONObject> requests;
+                try {
+                    requests = RequestHandler.requests(request);
+                } catch (JSONException e) {
+                    connection.reply(RequestHandler.failed(null, "malformed request: " + e.getMessage()));
+                    continue;
+                }
+                if (!handler.admit(requests.size())) {
+                    for (JSONObject x : requests) {
+                        connection.reply(RequestHandler.busy(x.opt("id")));
+                    }
+                    continue;
+                }
+                // each request of a batch is processed and answered on its own
+                for (JSONObject x : requests) {
+                    connection.dispatch(x);
+                }
+            }
+        } finally {
+            // requests still being processed keep the connection open for their replies
+            connection.release();
+        }
+    }
 
-        StringBuilder responseStrBuilder = new StringBuilder();
+    /**
+     * The sending side of one client connection, shared by its reader and the workers
+     * answering its requests.
+     */
+    private final class Connection {
+        private final Socket socket;
+        private final PrintWriter out;
+        /* requests handed to workers and not yet answered, plus one until the reader finishes */
+        private final AtomicInteger pending = new AtomicInteger(1);
 
-        while(!(line =  in.readLine()).equals("")){
-            responseStrBuilder.append(line);
-            System.err.println("request: " + line);
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            // similarly, wrap character=>byte stream converter around the
+            // socket output stream, and wrap a PrintWriter around that so
+            // that we have more convenient ways to write Java primitive
+            // types to it. Workers share it, so every reply is written while
+            // holding its lock.
+            this.out = new PrintWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), StandardCharsets.UTF_8), true);
         }
 
-        JSONObject x = new JSONObject(responseStrBuilder.toString());
+        /**
+         * Hand an admitted request to a worker, or tell the client the server is busy
+         * if it is shutting down.
+         */
+        void dispatch(JSONObject x) {
+            pending.incrementAndGet();
+            try {
+                workers.execute(() -> {
+                    try {
+                        JSONObject y;
+                        try {
+                            y = handler.respond(x);
+                        } finally {
+                            // done before replying, so a client that has its reply may send more
+                            handler.done();
+                        }
+                        reply(y);
+                    } finally {
+                        release();
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                handler.done();
+                reply(RequestHandler.busy(x.opt("id")));
+                release();
+            }
+        }
 
-        // similarly, wrap character=>byte stream converter around the
-        // socket output stream, and wrap a PrintWriter around that so
-        // that we have more convenient ways to write Java primitive
-        // types to it.
-        PrintWriter out = new PrintWriter(new OutputStreamWriter(
-                socket.getOutputStream()), true);
+        void reply(JSONObject y) {
+            synchronized (out) {
+                out.println(y);
+            }
+        }
 
-        try {
-            // each request is a JSONObject containing id, type, etc
-            // not a single line
+        /**
+         * Count a request as answered, or the reader as finished, closing the connection
+         * once nothing more will be sent on it.
+         */
+        void release() {
+            if (pending.decrementAndGet() == 0) {
+                open.remove(socket);
+                out.close();
                 try {
-                    // compute answer and send back to client
-                    JSONObject y = process(x);
-                    System.err.println("reply: " + y);
-                    out.println(y);
-                } catch (NumberFormatException | NoSuchObjectException e) {
-                    // complain about ill-formatted request
-                    System.err.println("reply: err");
-                    out.print("err\n");
+                    socket.close();
+                } catch (IOException ignored) {
+                    // already gone
                 }
-                // important! our PrintWriter is auto-flushing, but if it were
-                // not:
-                // out.flush();
-        } finally {
-            out.close();
-            in.close();
+            }
         }
     }
 
+    /**
+     * Read the next request: the lines up to the next blank line, skipping blank lines before it.
+     *
+     * @return the text of the request, or null if the client has closed the connection
+     */
+    private static String readRequest(BufferedReader in) throws IOException {
+        StringBuilder request = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (!line.isEmpty()) {
+                request.append(line).append('\n');
+            } else if (request.length() > 0) {
+                return request.toString();
+            }
+        }
+        return request.length() > 0 ? request.toString() : null;
+    }
+
     /**
      * Parse the request, get response from WikiMediator and
      * add a response field to the JSONObject
@@ -153,61 +438,7 @@ public class WikiMediatorServer {
      * @return A new JSONObject with response field
      */
     public JSONObject process(JSONObject n) throws NoSuchObjectException, IOException {
-        System.out.println("processing...");
-        // new object does not contain id, fix this
-        JSONObject result = new JSONObject();
-        int id = n.optInt("id");
-        result.put("id", id);
-        String type = n.getString("type").replaceAll(",", "");
-        File fr = new File("local");
-        String n1 = n.toString();
-       // try (FileWriter file = new FileWriter(fr)) {
-         //   file.write(n1);
-           // System.out.println("Successfully Copied JSON Object to File...");
-        //}
-
-        if (type.equals("simpleSearch")){
-            String query = n.getString("query").replaceAll(",", "");
-            int limit = n.optInt("limit");
-            // creates a new mediator each time, can we improve this?
-            WikiMediator process = new WikiMediator();
-            List<String> response = process.simpleSearch(query, limit);
-            result.put("response", response);
-        }
-        else if (type.equals("getPage")){
-            String query = n.getString("query").replaceAll(",", "");
-            WikiMediator process = new WikiMediator();
-            String response = process.getPage(query);
-            result.put("response", response);
-        }
-        else if (type.equals("getConnectedPages")){
-            String query = n.getString("query").replaceAll(",", "");
-            int hops = n.optInt("hops");
-            WikiMediator process = new WikiMediator();
-            List<String> response = process.getConnectedPages(query, hops);
-            result.put("response", response);
-        }
-        else if (type.equals("zeitgeist")){
-            int limit = n.optInt("limit");
-            WikiMediator process = new WikiMediator();
-            List<String> response = process.zeitgeist(limit);
-            result.put("response", response);
-        }
-        else if (type.equals("trending")){
-            int limit = n.optInt("limit");
-            WikiMediator process = new WikiMediator();
-            List<String> response = process.trending(limit);
-            result.put("response", response);
-        }
-        else if (type.equals("peakLoad30s")){
-            WikiMediator process = new WikiMediator();
-            int response = process.peakLoad30s();
-            result.put("response", response);
-        }
-        else
-            throw new NoSuchObjectException();
-
-        return result;
+        return handler.process(n);
     }
 
     /**
@@ -215,7 +446,17 @@ public class WikiMediatorServer {
      */
     public static void main(String[] args) {
         try {
-            WikiMediatorServer server = new WikiMediatorServer(WIKIMEDIATOR_PORT, WIKIMEDIATOR_N);
+            // run with -Dwikimediator.virtual=true to handle connections on virtual threads
+            WikiMediatorServer server = Boolean.getBoolean("wikimediator.virtual")
+                    ? withVirtualThreads(WIKIMEDIATOR_PORT, WikiMediator.MAX_UPSTREAM)
+                    : new WikiMediatorServer(WIKIMEDIATOR_PORT, WIKIMEDIATOR_N);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.shutdown(SHUTDOWN_TIMEOUT);
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }));
             server.serve();
         } catch (IOException e) {
             e.printStackTrace();
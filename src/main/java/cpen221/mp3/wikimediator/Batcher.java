@@ -0,0 +1,239 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Combines lookups of single titles, made by any number of threads, into requests
+ * for many titles at once.
+ *
+ * Abstraction Function:
+ *    open is the batch currently collecting titles, or null if there is none. A batch maps
+ *    each of its titles to the future of that title's value. The thread that opens a batch
+ *    leads it: it waits until the batch holds batchSize titles or window milliseconds have
+ *    passed, then looks up every title of the batch with a single call to fetch.
+ *
+ * Representation Invariant:
+ *    batchSize > 0, window >= 0, fetch != null
+ *    open == null or 0 < open.size() < batchSize
+ *
+ * Thread Safety:
+ *    open and the batches it refers to are only changed while synchronized on this batcher;
+ *    a closed batch is only read by its leader, and fetch is called with no lock held.
+ */
+class Batcher<V> {
+
+	private final int batchSize;
+	private final long window;
+	private final Function<List<String>, Map<String, V>> fetch;
+	private Map<String, CompletableFuture<V>> open;
+
+	/**
+	 * Create a batcher.
+	 *
+	 * @param batchSize the most titles looked up by one call to fetch, requires batchSize > 0
+	 * @param window how long, in milliseconds, a batch waits for more titles, requires window >= 0
+	 * @param fetch looks up a list of titles, returning a map from the titles found to their
+	 *              values; titles it leaves out have the value null
+	 */
+	Batcher(int batchSize, long window, Function<List<String>, Map<String, V>> fetch){
+		this.batchSize = batchSize;
+		this.window = window;
+		this.fetch = fetch;
+	}
+
+	/**
+	 * Looks up one title, together with any other titles looked up at about the same time.
+	 *
+	 * @param title the title to look up
+	 * @return the value of title, or null if fetch did not find it
+	 */
+	V get(String title){
+		Map<String, CompletableFuture<V>> batch;
+		CompletableFuture<V> value;
+		boolean leader;
+		synchronized (this) {
+			leader = open == null;
+			if (leader) {
+				open = new LinkedHashMap<>();
+			}
+			batch = open;
+			value = batch.computeIfAbsent(title, t -> new CompletableFuture<>());
+			if (batch.size() >= batchSize) {
+				open = null;
+				notifyAll();
+			}
+		}
+		if (leader) {
+			awaitClosed(batch);
+			run(batch);
+		}
+		return join(value);
+	}
+
+	/**
+	 * Looks up many titles at once, in batches of at most batchSize titles, without
+	 * waiting for other threads to add to the batches.
+	 *
+	 * @param titles the titles to look up
+	 * @return a map from each title to its value, or to null if fetch did not find it
+	 */
+	Map<String, V> getAll(Collection<String> titles){
+		Map<String, V> values = new LinkedHashMap<>();
+		List<String> chunk = new ArrayList<>(Math.min(batchSize, titles.size()));
+		for (String title : titles) {
+			if (values.containsKey(title) || chunk.contains(title)) {
+				continue;
+			}
+			chunk.add(title);
+			if (chunk.size() == batchSize) {
+				fetchInto(chunk, values);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			fetchInto(chunk, values);
+		}
+		return values;
+	}
+
+	/**
+	 * Looks up many titles in batches of at most batchSize titles, running up to parallelism
+	 * batches at once, and gives each title's value to sink as soon as its batch is back.
+	 * Sink may be called from several threads at once. No batch is started once stop
+	 * returns true.
+	 *
+	 * @param titles the titles to look up
+	 * @param parallelism the most batches looked up at once, requires parallelism > 0
+	 * @param stop tells whether the remaining titles are no longer wanted
+	 * @param sink receives each title and its value, or null if fetch did not find it
+	 * @return true if every title was looked up, false if stop ended the lookups early
+	 */
+	boolean forEach(Collection<String> titles, int parallelism, BooleanSupplier stop,
+					BiConsumer<String, V> sink){
+		Queue<List<String>> chunks = new ConcurrentLinkedQueue<>();
+		List<String> chunk = new ArrayList<>(batchSize);
+		for (String title : new LinkedHashSet<>(titles)) {
+			chunk.add(title);
+			if (chunk.size() == batchSize) {
+				chunks.add(chunk);
+				chunk = new ArrayList<>(batchSize);
+			}
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+
+		Runnable drain = () -> {
+			List<String> next;
+			while (!stop.getAsBoolean() && (next = chunks.poll()) != null) {
+				Map<String, V> found = fetch.apply(next);
+				for (String title : next) {
+					sink.accept(title, found == null ? null : found.get(title));
+				}
+			}
+		};
+		int tasks = Math.min(parallelism, chunks.size());
+		if (tasks <= 1) {
+			drain.run();
+			return chunks.isEmpty();
+		}
+		// each task takes batches from the queue until it is empty, so at most 'tasks' run at once
+		try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+			List<Future<?>> running = new ArrayList<>(tasks);
+			for (int i = 0; i < tasks; i++) {
+				running.add(pool.submit(drain));
+			}
+			for (Future<?> task : running) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new IllegalStateException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("interrupted while fetching", e);
+				}
+			}
+		}
+		return chunks.isEmpty();
+	}
+
+	private void fetchInto(List<String> chunk, Map<String, V> values){
+		Map<String, V> found = fetch.apply(new ArrayList<>(chunk));
+		for (String title : chunk) {
+			values.put(title, found == null ? null : found.get(title));
+		}
+	}
+
+	/**
+	 * Waits until batch is full or its window has passed, and closes it.
+	 */
+	private synchronized void awaitClosed(Map<String, CompletableFuture<V>> batch){
+		long deadline = System.currentTimeMillis() + window;
+		long remaining = window;
+		boolean interrupted = false;
+		while (open == batch && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				// the batch is still owed to the threads waiting on it
+				interrupted = true;
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+		if (open == batch) {
+			open = null;
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Looks up every title of a closed batch and completes its futures.
+	 */
+	private void run(Map<String, CompletableFuture<V>> batch){
+		try {
+			Map<String, V> found = fetch.apply(new ArrayList<>(batch.keySet()));
+			for (Map.Entry<String, CompletableFuture<V>> entry : batch.entrySet()) {
+				entry.getValue().complete(found == null ? null : found.get(entry.getKey()));
+			}
+		} catch (RuntimeException e) {
+			for (CompletableFuture<V> value : batch.values()) {
+				value.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Waits for a value, rethrowing the unchecked exception it failed with, if any.
+	 */
+	static <V> V join(CompletableFuture<V> value){
+		try {
+			return value.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
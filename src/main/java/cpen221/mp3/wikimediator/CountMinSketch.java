@@ -0,0 +1,111 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates how often each item has been seen, in a fixed amount of memory. An estimate is
+ * never lower than the true count, and with probability at least 1 - delta it is higher by
+ * at most epsilon times the number of items seen.
+ *
+ * Abstraction Function:
+ *    counters[row * width + column] is the counter at column of row; each item is counted in
+ *    one counter per row, at the column picked by its hash, and its estimated count is the
+ *    smallest of those counters.
+ *
+ * Representation Invariant:
+ *    width is a power of two, depth > 0, counters.length() == depth * width
+ *    every counter is >= 0
+ *
+ * Thread Safety:
+ *    counters are only changed by atomic increments, so items are counted without locking.
+ *    An estimate made while an item is being counted may or may not include it.
+ */
+class CountMinSketch {
+
+	private final int width;
+	private final int depth;
+	private final AtomicLongArray counters;
+
+	/**
+	 * Create an empty sketch.
+	 *
+	 * @param epsilon the largest overestimate, as a fraction of the items seen,
+	 *                requires 0 < epsilon < 1
+	 * @param delta the probability an estimate is out by more than epsilon, requires 0 < delta < 1
+	 */
+	CountMinSketch(double epsilon, double delta){
+		int wanted = (int) Math.min(1 << 26, Math.ceil(Math.E / epsilon));
+		this.width = Integer.highestOneBit(Math.max(2, wanted) * 2 - 1);
+		this.depth = (int) Math.max(1, Math.ceil(Math.log(1 / delta)));
+		this.counters = new AtomicLongArray(width * depth);
+	}
+
+	/**
+	 * Counts an item.
+	 *
+	 * @param hash the item's hash, from CountMinSketch.hash
+	 * @return the item's estimated count, including this one
+	 */
+	long add(long hash){
+		return add(hash, 1);
+	}
+
+	/**
+	 * Counts several sightings of an item at once.
+	 *
+	 * @param hash the item's hash, from CountMinSketch.hash
+	 * @param n the number of sightings, requires n > 0
+	 * @return the item's estimated count, including these
+	 */
+	long add(long hash, long n){
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			estimate = Math.min(estimate, counters.addAndGet(index(hash, row), n));
+		}
+		return estimate;
+	}
+
+	/**
+	 * @param hash the item's hash, from CountMinSketch.hash
+	 * @return the item's estimated count
+	 */
+	long estimate(long hash){
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			estimate = Math.min(estimate, counters.get(index(hash, row)));
+		}
+		return estimate;
+	}
+
+	/**
+	 * @return the number of counters, which fixes the sketch's memory
+	 */
+	int size(){
+		return counters.length();
+	}
+
+	/**
+	 * Hashes an item for a sketch. Unlike String.hashCode, all 64 bits are well mixed,
+	 * so the hash can also tell apart many more than 2^32 items.
+	 *
+	 * @param item the item
+	 * @return a 64-bit hash of item
+	 */
+	static long hash(String item){
+		// FNV-1a over the characters, then the finalizer of MurmurHash3
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < item.length(); i++) {
+			h = (h ^ item.charAt(i)) * 0x100000001b3L;
+		}
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	private int index(long hash, int row){
+		// the rows' columns come from two halves of the hash (Kirsch and Mitzenmacher)
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		return row * width + ((h1 + row * h2) & (width - 1));
+	}
+}
@@ -0,0 +1,78 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search statistics that count each query: exactly, or for the most searched queries only
+ * if the summary has room for just some of them.
+ *
+ * Abstraction Function:
+ *    summary counts the searches for each query, or for those most searched if it is bounded;
+ *    trends counts the searches in each second of the trending window. If summary is bounded,
+ *    distinct estimates the number of distinct queries; otherwise distinct is null and the
+ *    number is summary's size.
+ *
+ * Representation Invariant:
+ *    summary and trends are not null
+ *
+ * Thread Safety:
+ *    summary, trends and distinct are thread-safe, and record adds to each of them without
+ *    waiting for a lock.
+ */
+class CountingStatistics implements SearchStatistics {
+
+	private final StreamSummary summary;
+	private final TrendWindow trends;
+	private final HyperLogLog distinct;
+
+	/**
+	 * Create empty statistics.
+	 *
+	 * @param queries the number of queries counted, requires queries > 0;
+	 *                Integer.MAX_VALUE counts every query exactly
+	 * @param window the length of the trending window in seconds, requires window > 0
+	 */
+	CountingStatistics(int queries, int window){
+		this.summary = new StreamSummary(queries);
+		this.trends = new TrendWindow(window);
+		this.distinct = queries == Integer.MAX_VALUE ? null : new HyperLogLog(HyperLogLog.precisionFor(0.01));
+	}
+
+	@Override
+	public void record(String query, long now){
+		summary.record(query);
+		trends.record(query, now);
+		if (distinct != null) {
+			distinct.add(CountMinSketch.hash(query));
+		}
+	}
+
+	@Override
+	public List<String> mostFrequent(int limit){
+		return summary.top(limit);
+	}
+
+	@Override
+	public List<String> trending(int limit, long now){
+		return trends.top(limit, now);
+	}
+
+	@Override
+	public long distinctQueries(){
+		return distinct == null ? summary.size() : distinct.estimate();
+	}
+
+	@Override
+	public List<Map.Entry<String, Long>> counts(){
+		return summary.entries();
+	}
+
+	@Override
+	public void restore(String query, long count){
+		summary.add(query, count);
+		if (distinct != null) {
+			distinct.add(CountMinSketch.hash(query));
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Estimates the number of distinct items seen, in a fixed amount of memory, with a relative
+ * standard error of about 1.04 / sqrt(2^precision).
+ *
+ * Abstraction Function:
+ *    each item's hash picks a register from its top precision bits; the register holds the
+ *    largest rank, one more than the number of leading zeros of the remaining bits, of any
+ *    item it was picked by. The estimate is the harmonic mean of 2^rank over the registers,
+ *    corrected as by Flajolet et al., and by linear counting while many registers are empty.
+ *
+ * Representation Invariant:
+ *    4 <= precision <= 18, registers.length() == 2^precision
+ *    0 <= every register <= 65 - precision
+ *
+ * Thread Safety:
+ *    registers only grow, by compareAndSet, so items are added without locking.
+ */
+class HyperLogLog {
+
+	private final int precision;
+	private final AtomicIntegerArray registers;
+
+	/**
+	 * Create an empty estimator.
+	 *
+	 * @param precision the number of hash bits that pick a register, requires 4 <= precision <= 18
+	 */
+	HyperLogLog(int precision){
+		this.precision = precision;
+		this.registers = new AtomicIntegerArray(1 << precision);
+	}
+
+	/**
+	 * @param error the wanted relative standard error, requires error > 0
+	 * @return the precision giving that error, within the range allowed
+	 */
+	static int precisionFor(double error){
+		double m = Math.pow(1.04 / error, 2);
+		int precision = (int) Math.ceil(Math.log(m) / Math.log(2));
+		return Math.max(4, Math.min(18, precision));
+	}
+
+	/**
+	 * Adds an item.
+	 *
+	 * @param hash the item's hash, from CountMinSketch.hash
+	 */
+	void add(long hash){
+		int index = (int) (hash >>> (64 - precision));
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+		int current = registers.get(index);
+		while (rank > current && !registers.compareAndSet(index, current, rank)) {
+			current = registers.get(index);
+		}
+	}
+
+	/**
+	 * @return the estimated number of distinct items added
+	 */
+	long estimate(){
+		int m = registers.length();
+		double sum = 0;
+		int empty = 0;
+		for (int i = 0; i < m; i++) {
+			int r = registers.get(i);
+			sum += 1.0 / (1L << r);
+			if (r == 0) {
+				empty++;
+			}
+		}
+		double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && empty > 0) {
+			estimate = m * Math.log((double) m / empty);
+		}
+		return Math.round(estimate);
+	}
+}
@@ -0,0 +1,292 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A WikiBackend that holds its pages in memory, so a WikiMediator can be tested, and its
+ * performance measured, without the network. Every request, whether for one title or a
+ * batch, takes latency milliseconds, standing in for a round trip to Wikipedia.
+ * The pages are added by addPage and addLink, or generated by synthetic.
+ *
+ * Abstraction Function:
+ *    pages maps each title to its page's text, last author and categories, in title order.
+ *    links maps a title to the titles its page links to, in the order they were added, and
+ *    backlinks a title to the titles of the pages linking to it. members maps a category to
+ *    the titles of its pages, and contributions a user to the titles of the pages they wrote.
+ *    requests counts the requests answered.
+ *
+ * Representation Invariant:
+ *    latency >= 0
+ *    t is in members.get(c) iff c is in pages.get(t).categories
+ *    t is in contributions.get(u) iff pages.get(t).author equals u
+ *    t is in links.get(s) iff s is in backlinks.get(t)
+ *
+ * Thread Safety:
+ *    pages is a ConcurrentSkipListMap of immutable pages; the other maps are ConcurrentHashMaps
+ *    of lists that are only used while synchronized on the list, and their lists are copied
+ *    before they are returned. Requests sleep without holding any lock.
+ */
+public class InMemoryWiki implements WikiBackend {
+
+	/* the pages generated by synthetic are in 10 categories, written by 100 users */
+	public static final int SYNTHETIC_CATEGORIES = 10;
+	public static final int SYNTHETIC_AUTHORS = 100;
+
+	private final NavigableMap<String, Page> pages = new ConcurrentSkipListMap<>();
+	private final Map<String, List<String>> links = new ConcurrentHashMap<>();
+	private final Map<String, List<String>> backlinks = new ConcurrentHashMap<>();
+	private final Map<String, List<String>> members = new ConcurrentHashMap<>();
+	private final Map<String, List<String>> contributions = new ConcurrentHashMap<>();
+	private final LongAdder requests = new LongAdder();
+	private volatile long latency;
+
+	/**
+	 * Creates an empty wiki that answers at once.
+	 */
+	public InMemoryWiki(){
+		this(0);
+	}
+
+	/**
+	 * Creates an empty wiki.
+	 *
+	 * @param latency the time each request takes in milliseconds, requires latency >= 0
+	 */
+	public InMemoryWiki(long latency){
+		this.latency = latency;
+	}
+
+	/**
+	 * Generates a wiki of pages titled "Page 0" to "Page (pages - 1)". Each page links to
+	 * the next, the last one back to the first, so there is a path between any two pages;
+	 * and to links - 1 other pages picked at random. Page i is in category
+	 * "Category:Group (i mod SYNTHETIC_CATEGORIES)", was last written by
+	 * "User (i mod SYNTHETIC_AUTHORS)", and its text lists its links as wikitext.
+	 * The same arguments always generate the same wiki.
+	 *
+	 * @param pages the number of pages, requires pages > 1
+	 * @param links the number of links on each page, requires 0 < links < pages
+	 * @param seed the seed of the random links
+	 * @param latency the time each request takes in milliseconds, requires latency >= 0
+	 * @return the generated wiki
+	 */
+	public static InMemoryWiki synthetic(int pages, int links, long seed, long latency){
+		InMemoryWiki wiki = new InMemoryWiki(latency);
+		Random random = new Random(seed);
+		for (int i = 0; i < pages; i++) {
+			Set<Integer> targets = new LinkedHashSet<>();
+			targets.add((i + 1) % pages);
+			while (targets.size() < links) {
+				int target = random.nextInt(pages);
+				if (target != i) {
+					targets.add(target);
+				}
+			}
+
+			StringBuilder text = new StringBuilder("'''Page " + i + "''' links to");
+			for (int target : targets) {
+				text.append(" [[Page ").append(target).append("]]");
+				wiki.addLink("Page " + i, "Page " + target);
+			}
+			wiki.addPage("Page " + i, text.append('.').toString(), "User " + (i % SYNTHETIC_AUTHORS),
+					Collections.singletonList("Category:Group " + (i % SYNTHETIC_CATEGORIES)));
+		}
+		return wiki;
+	}
+
+	/**
+	 * Adds a page. Its links are added separately, by addLink.
+	 *
+	 * @param title the title of the page, requires no page titled title yet
+	 * @param text the text of the page
+	 * @param author the user who last wrote the page
+	 * @param categories the categories the page is in, with their "Category:" prefix
+	 * @throws IllegalArgumentException if there already is a page titled title
+	 */
+	public void addPage(String title, String text, String author, List<String> categories){
+		Page page = new Page(text, author, categories);
+		if (pages.putIfAbsent(title, page) != null) {
+			throw new IllegalArgumentException("page already exists: " + title);
+		}
+		for (String category : page.categories) {
+			append(members, category, title);
+		}
+		append(contributions, author, title);
+	}
+
+	/**
+	 * Adds a link between two pages, which need not have been added yet.
+	 *
+	 * @param from the title of the page the link is on
+	 * @param to the title of the page linked to
+	 */
+	public void addLink(String from, String to){
+		append(links, from, to);
+		append(backlinks, to, from);
+	}
+
+	/**
+	 * @param latency the time each request takes from now on in milliseconds, requires latency >= 0
+	 */
+	public void setLatency(long latency){
+		this.latency = latency;
+	}
+
+	/**
+	 * @return the number of requests answered, counting a batch as one request
+	 */
+	public long requests(){
+		return requests.sum();
+	}
+
+	@Override
+	public List<String> allPages(String prefix, int limit) {
+		request();
+		List<String> found = new ArrayList<>();
+		for (String title : pages.tailMap(prefix, true).keySet()) {
+			if (found.size() >= limit || !title.startsWith(prefix)) {
+				break;
+			}
+			found.add(title);
+		}
+		return found;
+	}
+
+	@Override
+	public String getPageText(String title) {
+		request();
+		Page page = pages.get(title);
+		return page == null ? "" : page.text;
+	}
+
+	@Override
+	public Map<String, String> getPageTexts(List<String> titles) {
+		request();
+		Map<String, String> texts = new HashMap<>();
+		for (String title : titles) {
+			Page page = pages.get(title);
+			texts.put(title, page == null ? "" : page.text);
+		}
+		return texts;
+	}
+
+	@Override
+	public List<String> getLinksOnPage(String title) {
+		request();
+		return copy(links, title);
+	}
+
+	@Override
+	public Map<String, List<String>> getLinksOnPages(List<String> titles) {
+		request();
+		return copy(links, titles);
+	}
+
+	@Override
+	public List<String> whatLinksHere(String title) {
+		request();
+		return copy(backlinks, title);
+	}
+
+	@Override
+	public Map<String, List<String>> whatLinksHere(List<String> titles) {
+		request();
+		return copy(backlinks, titles);
+	}
+
+	@Override
+	public boolean exists(String title) {
+		request();
+		return pages.containsKey(title);
+	}
+
+	@Override
+	public String author(String title) {
+		request();
+		Page page = pages.get(title);
+		return page == null ? null : page.author;
+	}
+
+	@Override
+	public List<String> categories(String title) {
+		request();
+		Page page = pages.get(title);
+		return page == null ? Collections.emptyList() : page.categories;
+	}
+
+	@Override
+	public List<String> members(String category) {
+		request();
+		return copy(members, category);
+	}
+
+	@Override
+	public List<String> contributions(String user) {
+		request();
+		return copy(contributions, user);
+	}
+
+	/**
+	 * Counts a request and waits as long as it takes.
+	 */
+	private void request(){
+		requests.increment();
+		long wait = latency;
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while waiting for a request", e);
+			}
+		}
+	}
+
+	private static void append(Map<String, List<String>> map, String key, String value){
+		List<String> values = map.computeIfAbsent(key, k -> new ArrayList<>());
+		synchronized (values) {
+			values.add(value);
+		}
+	}
+
+	private static List<String> copy(Map<String, List<String>> map, String key){
+		List<String> values = map.get(key);
+		if (values == null) {
+			return new ArrayList<>();
+		}
+		synchronized (values) {
+			return new ArrayList<>(values);
+		}
+	}
+
+	private static Map<String, List<String>> copy(Map<String, List<String>> map, List<String> keys){
+		Map<String, List<String>> copies = new HashMap<>();
+		for (String key : keys) {
+			copies.put(key, copy(map, key));
+		}
+		return copies;
+	}
+
+	private static final class Page {
+		private final String text;
+		private final String author;
+		private final List<String> categories;
+
+		Page(String text, String author, List<String> categories){
+			this.text = text;
+			this.author = author;
+			this.categories = Collections.unmodifiableList(new ArrayList<>(categories));
+		}
+	}
+}
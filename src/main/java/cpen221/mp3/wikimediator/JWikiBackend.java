@@ -0,0 +1,119 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import fastily.jwiki.core.MQuery;
+import fastily.jwiki.core.NS;
+import fastily.jwiki.core.Wiki;
+import fastily.jwiki.dwrap.Contrib;
+import fastily.jwiki.dwrap.Revision;
+
+/**
+ * A WikiBackend that asks a MediaWiki site, by default en.wikipedia.org, through jWiki.
+ *
+ * Abstraction Function:
+ *    the pages are those of the site wiki is connected to; batches of titles are asked for
+ *    in one request through MQuery.
+ *
+ * Representation Invariant:
+ *    wiki is non-null
+ *
+ * Thread Safety:
+ *    wiki is never reassigned, and jWiki's Wiki can be shared between threads.
+ */
+public class JWikiBackend implements WikiBackend {
+
+	/* the site a WikiMediator asks by default */
+	public static final String WIKIPEDIA = "en.wikipedia.org";
+
+	private final Wiki wiki;
+
+	/**
+	 * Creates a backend for English Wikipedia.
+	 */
+	public JWikiBackend(){
+		this(WIKIPEDIA);
+	}
+
+	/**
+	 * Creates a backend for a MediaWiki site.
+	 *
+	 * @param domain the domain of the site, such as "en.wikipedia.org"
+	 */
+	public JWikiBackend(String domain){
+		this.wiki = new Wiki(domain);
+	}
+
+	@Override
+	public List<String> allPages(String prefix, int limit) {
+		return wiki.allPages(prefix, false, false, limit, null);
+	}
+
+	@Override
+	public String getPageText(String title) {
+		return wiki.getPageText(title);
+	}
+
+	@Override
+	public Map<String, String> getPageTexts(List<String> titles) {
+		return MQuery.getPageText(wiki, titles);
+	}
+
+	@Override
+	public List<String> getLinksOnPage(String title) {
+		return wiki.getLinksOnPage(title);
+	}
+
+	@Override
+	public Map<String, List<String>> getLinksOnPages(List<String> titles) {
+		Map<String, ? extends List<String>> found = MQuery.getLinksOnPage(wiki, false, titles);
+		return found == null ? null : new HashMap<>(found);
+	}
+
+	@Override
+	public List<String> whatLinksHere(String title) {
+		return wiki.whatLinksHere(title);
+	}
+
+	@Override
+	public Map<String, List<String>> whatLinksHere(List<String> titles) {
+		Map<String, ? extends List<String>> found = MQuery.whatLinksHere(wiki, titles, false);
+		return found == null ? null : new HashMap<>(found);
+	}
+
+	@Override
+	public boolean exists(String title) {
+		return wiki.exists(title);
+	}
+
+	@Override
+	public String author(String title) {
+		List<Revision> revisions = wiki.getRevisions(title, 1, false, null, null);
+		return revisions == null || revisions.isEmpty() ? null : revisions.get(0).user;
+	}
+
+	@Override
+	public List<String> categories(String title) {
+		List<String> categories = wiki.getCategoriesOnPage(title);
+		return categories == null ? Collections.emptyList() : categories;
+	}
+
+	@Override
+	public List<String> members(String category) {
+		List<String> members = wiki.getCategoryMembers(category, NS.MAIN);
+		return members == null ? Collections.emptyList() : members;
+	}
+
+	@Override
+	public List<String> contributions(String user) {
+		List<Contrib> contribs = wiki.getContribs(user, WikiMediator.QUERY_CONTRIBS, false, NS.MAIN);
+		if (contribs == null) {
+			return Collections.emptyList();
+		}
+		return contribs.stream().map(c -> c.title).distinct().collect(Collectors.toList());
+	}
+}
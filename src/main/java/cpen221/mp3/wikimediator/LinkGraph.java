@@ -0,0 +1,254 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the links between Wikipedia pages that have been fetched, in both directions,
+ * so that graph searches need not fetch them again.
+ *
+ * Abstraction Function:
+ *    ids maps each title the graph knows to its id, and titles[id] is the title with that id.
+ *    For each id, out[id] holds the ids of the pages that page links to, fetched at time
+ *    outFetched[id], or out[id] is null if they are not known; in[id] and inFetched[id] hold
+ *    the pages linking to it the same way. Links fetched more than ttl milliseconds ago are
+ *    treated as unknown.
+ *
+ * Representation Invariant:
+ *    ttl > 0, 0 <= size <= maxTitles
+ *    titles, out, outFetched, in and inFetched all have the same length, at least size
+ *    ids.get(titles[i]) == i for 0 <= i < size, and ids has exactly size entries
+ *    every id in out[i] and in[i] is less than size
+ *
+ * Thread Safety:
+ *    every method is synchronized on the graph.
+ *
+ * Titles are kept once however many pages link to them, and links as arrays of int, so
+ * the graph takes a fraction of the memory of lists of titles. When maxTitles titles are
+ * known the graph forgets the links fetched more than ttl ago, then the oldest links, until
+ * a quarter of maxTitles is free, and the titles no remaining links mention.
+ */
+public class LinkGraph {
+
+	private static final int[] NO_LINKS = new int[0];
+
+	private final long ttl;
+	private final int maxTitles;
+	private final Map<String, Integer> ids = new HashMap<>();
+	private String[] titles = new String[1024];
+	private int[][] out = new int[1024][];
+	private long[] outFetched = new long[1024];
+	private int[][] in = new int[1024][];
+	private long[] inFetched = new long[1024];
+	private int size;
+
+	/**
+	 * Create an empty link graph.
+	 *
+	 * @param ttl the number of seconds links stay known, requires ttl > 0
+	 * @param maxTitles the most titles the graph holds, requires maxTitles > 0
+	 */
+	public LinkGraph(int ttl, int maxTitles){
+		this.ttl = ttl * 1000L;
+		this.maxTitles = maxTitles;
+	}
+
+	/**
+	 * @return the titles of the pages title links to, or null if they are not known
+	 */
+	public synchronized List<String> links(String title){
+		return lookup(title, out, outFetched);
+	}
+
+	/**
+	 * @return the titles of the pages linking to title, or null if they are not known
+	 */
+	public synchronized List<String> backlinks(String title){
+		return lookup(title, in, inFetched);
+	}
+
+	/**
+	 * Record the pages title links to, replacing any known before.
+	 */
+	public synchronized void putLinks(String title, List<String> links){
+		store(title, links, true);
+	}
+
+	/**
+	 * Record the pages linking to title, replacing any known before.
+	 */
+	public synchronized void putBacklinks(String title, List<String> links){
+		store(title, links, false);
+	}
+
+	/**
+	 * @return the number of titles the graph knows
+	 */
+	public synchronized int size(){
+		return size;
+	}
+
+	private List<String> lookup(String title, int[][] adjacency, long[] fetched){
+		Integer id = ids.get(title);
+		if (id == null || adjacency[id] == null
+				|| System.currentTimeMillis() - fetched[id] > ttl) {
+			return null;
+		}
+		int[] targets = adjacency[id];
+		List<String> links = new ArrayList<>(targets.length);
+		for (int target : targets) {
+			links.add(titles[target]);
+		}
+		return links;
+	}
+
+	private void store(String title, List<String> links, boolean outward){
+		if (links.size() + 1 > maxTitles) {
+			return;
+		}
+		if (size + links.size() + 1 > maxTitles) {
+			evict(links.size() + 1);
+		}
+		int id = intern(title);
+		int[] targets = links.isEmpty() ? NO_LINKS : new int[links.size()];
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = intern(links.get(i));
+		}
+		if (outward) {
+			out[id] = targets;
+			outFetched[id] = System.currentTimeMillis();
+		} else {
+			in[id] = targets;
+			inFetched[id] = System.currentTimeMillis();
+		}
+	}
+
+	private int intern(String title){
+		Integer id = ids.get(title);
+		if (id != null) {
+			return id;
+		}
+		if (size == titles.length) {
+			int capacity = titles.length * 2;
+			titles = Arrays.copyOf(titles, capacity);
+			out = Arrays.copyOf(out, capacity);
+			outFetched = Arrays.copyOf(outFetched, capacity);
+			in = Arrays.copyOf(in, capacity);
+			inFetched = Arrays.copyOf(inFetched, capacity);
+		}
+		titles[size] = title;
+		ids.put(title, size);
+		return size++;
+	}
+
+	/**
+	 * Makes room for needed more titles. Forgets every list of links fetched more than ttl
+	 * ago, then the oldest lists until the titles still mentioned leave room for needed
+	 * titles and a quarter of maxTitles besides, or no lists are left. The titles no list
+	 * mentions any more are forgotten, and the rest renumbered in the order they were known.
+	 */
+	private void evict(int needed){
+		long now = System.currentTimeMillis();
+		// refs[id] counts the lists mentioning id, as the page they belong to or a link
+		int[] refs = new int[size];
+		List<Integer> lists = new ArrayList<>();
+		for (int id = 0; id < size; id++) {
+			if (out[id] != null) {
+				lists.add(id * 2);
+				mention(id, out[id], refs, 1);
+			}
+			if (in[id] != null) {
+				lists.add(id * 2 + 1);
+				mention(id, in[id], refs, 1);
+			}
+		}
+		int live = 0;
+		for (int id = 0; id < size; id++) {
+			if (refs[id] > 0) {
+				live++;
+			}
+		}
+
+		lists.sort(Comparator.comparingLong(list -> list % 2 == 0 ? outFetched[list / 2] : inFetched[list / 2]));
+		int target = maxTitles - maxTitles / 4;
+		for (int list : lists) {
+			int id = list / 2;
+			boolean outward = list % 2 == 0;
+			long fetched = outward ? outFetched[id] : inFetched[id];
+			if (now - fetched <= ttl && live + needed <= target) {
+				break;
+			}
+			live -= mention(id, outward ? out[id] : in[id], refs, -1);
+			if (outward) {
+				out[id] = null;
+			} else {
+				in[id] = null;
+			}
+		}
+
+		int[] renumbered = new int[size];
+		int kept = 0;
+		for (int id = 0; id < size; id++) {
+			renumbered[id] = refs[id] > 0 ? kept++ : -1;
+		}
+		String[] keptTitles = new String[titles.length];
+		int[][] keptOut = new int[titles.length][];
+		long[] keptOutFetched = new long[titles.length];
+		int[][] keptIn = new int[titles.length][];
+		long[] keptInFetched = new long[titles.length];
+		ids.clear();
+		for (int id = 0; id < size; id++) {
+			int to = renumbered[id];
+			if (to < 0) {
+				continue;
+			}
+			keptTitles[to] = titles[id];
+			ids.put(titles[id], to);
+			keptOut[to] = renumber(out[id], renumbered);
+			keptOutFetched[to] = outFetched[id];
+			keptIn[to] = renumber(in[id], renumbered);
+			keptInFetched[to] = inFetched[id];
+		}
+		titles = keptTitles;
+		out = keptOut;
+		outFetched = keptOutFetched;
+		in = keptIn;
+		inFetched = keptInFetched;
+		size = kept;
+	}
+
+	/**
+	 * Adds delta to the count of lists mentioning each title of one list.
+	 *
+	 * @return the number of titles the list was the last to mention, when removing it
+	 */
+	private static int mention(int id, int[] targets, int[] refs, int delta){
+		int freed = 0;
+		refs[id] += delta;
+		if (refs[id] == 0) {
+			freed++;
+		}
+		for (int target : targets) {
+			refs[target] += delta;
+			if (refs[target] == 0) {
+				freed++;
+			}
+		}
+		return freed;
+	}
+
+	private static int[] renumber(int[] targets, int[] renumbered){
+		if (targets == null || targets.length == 0) {
+			return targets;
+		}
+		int[] moved = new int[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			moved[i] = renumbered[targets[i]];
+		}
+		return moved;
+	}
+}
@@ -0,0 +1,610 @@
+package cpen221.mp3.wikimediator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * The links between Wikipedia pages, read from a graph file that is memory-mapped rather
+ * than loaded, so graph searches run against a whole dump of Wikipedia without the network.
+ *
+ * A graph file is built from a dump by build, and holds, in big-endian order:
+ *      int magic, int version, int n, int unused, long e, then the positions of the sections:
+ *      long outOffsets, long outTargets, long inOffsets, long inTargets,
+ *      long titleOffsets, long sortedIds, long titleBytes
+ * followed by the sections, each starting on a multiple of 8 bytes:
+ *      outOffsets:   long[n + 1], the links on page i are outTargets[outOffsets[i] .. outOffsets[i + 1] - 1]
+ *      outTargets:   int[e], the ids of the pages linked to
+ *      inOffsets, inTargets: the same for the pages linking to each page
+ *      titleOffsets: long[n + 1], the title of page i is titleBytes[titleOffsets[i] .. titleOffsets[i + 1] - 1]
+ *      sortedIds:    int[n], the ids of the pages ordered by the bytes of their titles
+ *      titleBytes:   the UTF-8 bytes of every title
+ *
+ * Abstraction Function:
+ *      the pages of the graph are the ids 0 .. n - 1, and page i is the page titled title(i).
+ *      The pages page i links to are links(i), and the pages linking to it backlinks(i).
+ *
+ * Representation Invariant:
+ *      n >= 0, e >= 0, the mapped file is a graph file as described above
+ *      outOffsets and inOffsets are non-decreasing, start at 0 and end at e
+ *      every id in outTargets and inTargets is less than n
+ *      titles in sortedIds order are strictly increasing
+ *
+ * Thread Safety:
+ *      the graph is immutable once opened; every search keeps its state in local variables.
+ */
+public class OfflineGraph {
+
+	/* "MP3G" */
+	public static final int GRAPH_MAGIC = 0x4d503347;
+	public static final int VERSION = 1;
+
+	private static final int HEADER = 80;
+
+	private final Mapping file;
+	private final int n;
+	private final long e;
+	private final long outOffsets;
+	private final long outTargets;
+	private final long inOffsets;
+	private final long inTargets;
+	private final long titleOffsets;
+	private final long sortedIds;
+	private final long titleBytes;
+
+	private OfflineGraph(Mapping file) throws IOException {
+		this.file = file;
+		if (file.size < HEADER || file.getInt(0) != GRAPH_MAGIC || file.getInt(4) != VERSION) {
+			throw new IOException("not a graph file");
+		}
+		this.n = file.getInt(8);
+		this.e = file.getLong(16);
+		this.outOffsets = file.getLong(24);
+		this.outTargets = file.getLong(32);
+		this.inOffsets = file.getLong(40);
+		this.inTargets = file.getLong(48);
+		this.titleOffsets = file.getLong(56);
+		this.sortedIds = file.getLong(64);
+		this.titleBytes = file.getLong(72);
+	}
+
+	/**
+	 * Open a graph file written by build.
+	 *
+	 * @param graphFile the graph file
+	 * @return the graph held in graphFile
+	 * @throws IOException if the file cannot be read or is not a graph file
+	 */
+	public static OfflineGraph open(Path graphFile) throws IOException {
+		try (FileChannel channel = FileChannel.open(graphFile, StandardOpenOption.READ)) {
+			return new OfflineGraph(new Mapping(channel, FileChannel.MapMode.READ_ONLY, channel.size()));
+		}
+	}
+
+	/**
+	 * @return the number of pages in the graph
+	 */
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * @return the number of links in the graph
+	 */
+	public long links() {
+		return e;
+	}
+
+	/**
+	 * @param title the title of a page
+	 * @return the id of the page, or -1 if the graph has no page with that title
+	 */
+	public int id(String title) {
+		byte[] key = title.getBytes(StandardCharsets.UTF_8);
+		int lo = 0;
+		int hi = n - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int id = file.getInt(sortedIds + 4L * mid);
+			int c = Arrays.compareUnsigned(titleBytes(id), key);
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				return id;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param id the id of a page, requires 0 <= id < size()
+	 * @return the title of the page
+	 */
+	public String title(int id) {
+		return new String(titleBytes(id), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param id the id of a page, requires 0 <= id < size()
+	 * @return the ids of the pages the page links to
+	 */
+	public int[] links(int id) {
+		return targets(outOffsets, outTargets, id);
+	}
+
+	/**
+	 * @param id the id of a page, requires 0 <= id < size()
+	 * @return the ids of the pages linking to the page
+	 */
+	public int[] backlinks(int id) {
+		return targets(inOffsets, inTargets, id);
+	}
+
+	/**
+	 * Finds the pages that can be found by following up to hops links from a page.
+	 *
+	 * @param pageTitle the title of the starting page
+	 * @param hops max number of links that can be followed
+	 * @param limit max number of titles returned, requires limit > 0
+	 * @return the titles of up to limit pages, nearest first, starting with pageTitle;
+	 *         only pageTitle if the graph has no page with that title
+	 */
+	public List<String> connectedPages(String pageTitle, int hops, int limit) {
+		List<String> connected = new ArrayList<>();
+		connected.add(pageTitle);
+		int start = id(pageTitle);
+		if (start < 0) {
+			return connected;
+		}
+		IntMap visited = new IntMap();
+		visited.put(start, 0);
+		int[] frontier = {start};
+		for (int level = 0; level < hops && frontier.length > 0; level++) {
+			IntList next = new IntList();
+			for (int page : frontier) {
+				for (int s : links(page)) {
+					if (connected.size() >= limit) {
+						return connected;
+					}
+					if (visited.putIfAbsent(s, level + 1)) {
+						next.add(s);
+						connected.add(title(s));
+					}
+				}
+			}
+			frontier = next.toArray();
+		}
+		return connected;
+	}
+
+	/**
+	 * Finds a shortest path of links between two pages, searching from both ends at once.
+	 *
+	 * @param startPage the title of the page at which to start
+	 * @param stopPage the title of the page at which to end
+	 * @return the titles of the pages on the path, including both the start and end pages,
+	 *         or an empty list if there is no path
+	 */
+	public List<String> path(String startPage, String stopPage) {
+		int start = id(startPage);
+		int stop = id(stopPage);
+		if (start < 0 || stop < 0) {
+			return new ArrayList<>();
+		}
+		if (start == stop) {
+			return new ArrayList<>(Collections.singletonList(startPage));
+		}
+
+		// each side maps the pages it has reached to the page it reached them from
+		IntMap forward = new IntMap();
+		IntMap backward = new IntMap();
+		IntMap forwardDepth = new IntMap();
+		IntMap backwardDepth = new IntMap();
+		forward.put(start, -1);
+		backward.put(stop, -1);
+		forwardDepth.put(start, 0);
+		backwardDepth.put(stop, 0);
+		int[] forwardFrontier = {start};
+		int[] backwardFrontier = {stop};
+
+		while (forwardFrontier.length > 0 && backwardFrontier.length > 0) {
+			boolean forwards = forwardFrontier.length <= backwardFrontier.length;
+			IntMap near = forwards ? forward : backward;
+			IntMap nearDepth = forwards ? forwardDepth : backwardDepth;
+			IntMap far = forwards ? backward : forward;
+			IntMap farDepth = forwards ? backwardDepth : forwardDepth;
+			IntList next = new IntList();
+			int meeting = -1;
+			int best = Integer.MAX_VALUE;
+
+			for (int page : forwards ? forwardFrontier : backwardFrontier) {
+				int depth = nearDepth.get(page) + 1;
+				for (int s : forwards ? links(page) : backlinks(page)) {
+					if (near.putIfAbsent(s, page)) {
+						nearDepth.put(s, depth);
+						next.add(s);
+						if (far.contains(s) && depth + farDepth.get(s) < best) {
+							meeting = s;
+							best = depth + farDepth.get(s);
+						}
+					}
+				}
+			}
+			if (meeting >= 0) {
+				List<String> path = new ArrayList<>();
+				for (int s = meeting; s >= 0; s = forward.get(s)) {
+					path.add(title(s));
+				}
+				Collections.reverse(path);
+				for (int s = backward.get(meeting); s >= 0; s = backward.get(s)) {
+					path.add(title(s));
+				}
+				return path;
+			}
+			if (forwards) {
+				forwardFrontier = next.toArray();
+			} else {
+				backwardFrontier = next.toArray();
+			}
+		}
+		return new ArrayList<>();
+	}
+
+	private byte[] titleBytes(int id) {
+		long from = file.getLong(titleOffsets + 8L * id);
+		long to = file.getLong(titleOffsets + 8L * (id + 1));
+		return file.getBytes(titleBytes + from, (int) (to - from));
+	}
+
+	private int[] targets(long offsets, long targets, int id) {
+		long from = file.getLong(offsets + 8L * id);
+		long to = file.getLong(offsets + 8L * (id + 1));
+		int[] ids = new int[(int) (to - from)];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = file.getInt(targets + 4L * (from + i));
+		}
+		return ids;
+	}
+
+	/**
+	 * Build a graph file from a dump of Wikipedia's links, replacing any file already there.
+	 * The dump is a text file, in UTF-8, with one link per line: the title of the page the
+	 * link is on, a tab, and the title of the page it links to. Any further tab-separated
+	 * columns are ignored, as are empty lines and lines starting with '#'. Underscores in
+	 * titles are read as spaces, as in the dumps Wikipedia publishes.
+	 *
+	 * The dump is read once, and its links are kept in a temporary file rather than on
+	 * the heap; only the titles are held in memory while building.
+	 *
+	 * @param dump the dump to read
+	 * @param graphFile the graph file to write
+	 * @throws IOException if the dump cannot be read or the graph file cannot be written
+	 */
+	public static void build(Path dump, Path graphFile) throws IOException {
+		Map<String, Integer> ids = new HashMap<>();
+		List<byte[]> titles = new ArrayList<>();
+		int[] outDegree = new int[1024];
+		int[] inDegree = new int[1024];
+		long e = 0;
+
+		Path dir = graphFile.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path edges = Files.createTempFile(dir, graphFile.getFileName().toString(), ".edges");
+		Path tmp = Files.createTempFile(dir, graphFile.getFileName().toString(), ".tmp");
+		try {
+			try (BufferedReader in = Files.newBufferedReader(dump, StandardCharsets.UTF_8);
+				 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(edges)))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.isEmpty() || line.charAt(0) == '#') {
+						continue;
+					}
+					int tab = line.indexOf('\t');
+					if (tab < 0) {
+						throw new IOException("not a link: " + line);
+					}
+					int end = line.indexOf('\t', tab + 1);
+					int from = intern(ids, titles, line.substring(0, tab));
+					int to = intern(ids, titles, line.substring(tab + 1, end < 0 ? line.length() : end));
+					if (titles.size() > outDegree.length) {
+						outDegree = Arrays.copyOf(outDegree, outDegree.length * 2);
+						inDegree = Arrays.copyOf(inDegree, inDegree.length * 2);
+					}
+					outDegree[from]++;
+					inDegree[to]++;
+					out.writeInt(from);
+					out.writeInt(to);
+					e++;
+				}
+			}
+			write(tmp, edges, titles, outDegree, inDegree, e);
+			Files.move(tmp, graphFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(edges);
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static int intern(Map<String, Integer> ids, List<byte[]> titles, String title) {
+		String key = title.replace('_', ' ');
+		Integer id = ids.get(key);
+		if (id == null) {
+			id = titles.size();
+			ids.put(key, id);
+			titles.add(key.getBytes(StandardCharsets.UTF_8));
+		}
+		return id;
+	}
+
+	/**
+	 * Lay out the sections of a graph file and fill them in, placing each link read
+	 * from edges directly at its position in the file.
+	 */
+	private static void write(Path graphFile, Path edges, List<byte[]> titles,
+							  int[] outDegree, int[] inDegree, long e) throws IOException {
+		int n = titles.size();
+		long bytes = 0;
+		for (byte[] title : titles) {
+			bytes += title.length;
+		}
+		long outOffsets = HEADER;
+		long outTargets = outOffsets + 8L * (n + 1);
+		long inOffsets = align(outTargets + 4L * e);
+		long inTargets = inOffsets + 8L * (n + 1);
+		long titleOffsets = align(inTargets + 4L * e);
+		long sortedIds = titleOffsets + 8L * (n + 1);
+		long titleBytes = align(sortedIds + 4L * n);
+		long size = titleBytes + bytes;
+
+		try (FileChannel channel = FileChannel.open(graphFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			Mapping file = new Mapping(channel, FileChannel.MapMode.READ_WRITE, size);
+			file.putInt(0, GRAPH_MAGIC);
+			file.putInt(4, VERSION);
+			file.putInt(8, n);
+			file.putLong(16, e);
+			long[] sections = {outOffsets, outTargets, inOffsets, inTargets, titleOffsets, sortedIds, titleBytes};
+			for (int i = 0; i < sections.length; i++) {
+				file.putLong(24 + 8L * i, sections[i]);
+			}
+
+			// the degrees become the next free slot of each page's links
+			prefixSums(file, outOffsets, outDegree, n);
+			prefixSums(file, inOffsets, inDegree, n);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(edges)))) {
+				for (long i = 0; i < e; i++) {
+					int from = in.readInt();
+					int to = in.readInt();
+					file.putInt(outTargets + 4L * (file.getLong(outOffsets + 8L * from) + outDegree[from]++), to);
+					file.putInt(inTargets + 4L * (file.getLong(inOffsets + 8L * to) + inDegree[to]++), from);
+				}
+			} catch (EOFException eof) {
+				throw new IOException("links file truncated", eof);
+			}
+
+			long offset = 0;
+			for (int id = 0; id < n; id++) {
+				file.putLong(titleOffsets + 8L * id, offset);
+				file.putBytes(titleBytes + offset, titles.get(id));
+				offset += titles.get(id).length;
+			}
+			file.putLong(titleOffsets + 8L * n, offset);
+			int[] sorted = IntStream.range(0, n).boxed()
+					.sorted((a, b) -> Arrays.compareUnsigned(titles.get(a), titles.get(b)))
+					.mapToInt(Integer::intValue).toArray();
+			for (int i = 0; i < n; i++) {
+				file.putInt(sortedIds + 4L * i, sorted[i]);
+			}
+			file.force();
+		}
+	}
+
+	/**
+	 * Write the offsets of the pages' lists of links, given how many links each has,
+	 * and clear the counts.
+	 */
+	private static void prefixSums(Mapping file, long offsets, int[] degree, int n) {
+		long sum = 0;
+		for (int id = 0; id < n; id++) {
+			file.putLong(offsets + 8L * id, sum);
+			sum += degree[id];
+			degree[id] = 0;
+		}
+		file.putLong(offsets + 8L * n, sum);
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	/**
+	 * Build a graph file: OfflineGraph dump graphFile
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: OfflineGraph <links.tsv> <graph file>");
+			return;
+		}
+		build(Path.of(args[0]), Path.of(args[1]));
+		OfflineGraph graph = open(Path.of(args[1]));
+		System.out.println(graph.size() + " pages, " + graph.links() + " links");
+	}
+
+	/**
+	 * A file mapped into memory in segments, so that it may be larger than one buffer can hold.
+	 * Sections are aligned so that no int or long is split between segments.
+	 */
+	private static final class Mapping {
+		private static final int SHIFT = 30;
+		private static final long SEGMENT = 1L << SHIFT;
+
+		private final MappedByteBuffer[] segments;
+		private final long size;
+
+		Mapping(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+			this.size = size;
+			this.segments = new MappedByteBuffer[(int) ((size + SEGMENT - 1) >>> SHIFT)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long) i << SHIFT;
+				segments[i] = channel.map(mode, start, Math.min(SEGMENT, size - start));
+			}
+		}
+
+		int getInt(long position) {
+			return segments[(int) (position >>> SHIFT)].getInt((int) (position & (SEGMENT - 1)));
+		}
+
+		long getLong(long position) {
+			return segments[(int) (position >>> SHIFT)].getLong((int) (position & (SEGMENT - 1)));
+		}
+
+		void putInt(long position, int value) {
+			segments[(int) (position >>> SHIFT)].putInt((int) (position & (SEGMENT - 1)), value);
+		}
+
+		void putLong(long position, long value) {
+			segments[(int) (position >>> SHIFT)].putLong((int) (position & (SEGMENT - 1)), value);
+		}
+
+		byte[] getBytes(long position, int length) {
+			byte[] bytes = new byte[length];
+			for (int done = 0; done < length; ) {
+				ByteBuffer segment = segments[(int) ((position + done) >>> SHIFT)].duplicate();
+				int at = (int) ((position + done) & (SEGMENT - 1));
+				int count = Math.min(length - done, segment.capacity() - at);
+				segment.position(at);
+				segment.get(bytes, done, count);
+				done += count;
+			}
+			return bytes;
+		}
+
+		void putBytes(long position, byte[] bytes) {
+			for (int done = 0; done < bytes.length; ) {
+				ByteBuffer segment = segments[(int) ((position + done) >>> SHIFT)].duplicate();
+				int at = (int) ((position + done) & (SEGMENT - 1));
+				int count = Math.min(bytes.length - done, segment.capacity() - at);
+				segment.position(at);
+				segment.put(bytes, done, count);
+				done += count;
+			}
+		}
+
+		void force() {
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+		}
+	}
+
+	/**
+	 * A map from int to int, by open addressing, for the state of one search.
+	 */
+	private static final class IntMap {
+		private static final int FREE = -1;
+
+		private int[] keys = new int[16];
+		private int[] values = new int[16];
+		private int size;
+
+		IntMap() {
+			Arrays.fill(keys, FREE);
+		}
+
+		boolean contains(int key) {
+			return keys[slot(key)] == key;
+		}
+
+		/**
+		 * @return the value of key, requires contains(key)
+		 */
+		int get(int key) {
+			return values[slot(key)];
+		}
+
+		void put(int key, int value) {
+			if (!putIfAbsent(key, value)) {
+				values[slot(key)] = value;
+			}
+		}
+
+		/**
+		 * @return true if key was added, false if it was already present
+		 */
+		boolean putIfAbsent(int key, int value) {
+			int slot = slot(key);
+			if (keys[slot] == key) {
+				return false;
+			}
+			keys[slot] = key;
+			values[slot] = value;
+			if (++size * 2 > keys.length) {
+				grow();
+			}
+			return true;
+		}
+
+		private int slot(int key) {
+			int mask = keys.length - 1;
+			int hash = key * 0x9e3779b9;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (keys[slot] != FREE && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private void grow() {
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new int[oldKeys.length * 2];
+			values = new int[oldValues.length * 2];
+			Arrays.fill(keys, FREE);
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != FREE) {
+					putIfAbsent(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A growable list of int.
+	 */
+	private static final class IntList {
+		private int[] items = new int[16];
+		private int size;
+
+		void add(int item) {
+			if (size == items.length) {
+				items = Arrays.copyOf(items, size * 2);
+			}
+			items[size++] = item;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(items, size);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package cpen221.mp3.wikimediator;
+
+import cpen221.mp3.cache.Cache;
+import cpen221.mp3.cache.CacheSnapshot;
+import cpen221.mp3.cache.NoSuchObjectException;
+import cpen221.mp3.cache.SlabStore;
+import cpen221.mp3.cache.TinyLfuPolicy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Caches the text of Wikipedia pages off the Java heap, within a budget of bytes
+ * rather than a number of pages.
+ *
+ * Abstraction Function:
+ *    pages maps page titles to the UTF-8 text of the page, held in slabs. Each page weighs
+ *    the number of slab bytes it occupies, but at least 1, and pages may weigh as much as
+ *    the slabs hold. When a new page does not fit in the slabs, pages are evicted until it
+ *    does; a Window TinyLFU policy picks them, and turns the new page away instead if it
+ *    has been asked for less often than the page it would evict, so pages fetched once do
+ *    not push out popular ones.
+ *    Pages that leave the cache release their slab space.
+ *
+ * Representation Invariant:
+ *    slabs and pages are not null
+ *    every PageText in pages holds a live block of slabs
+ *
+ * Thread Safety:
+ *    pages is thread-safe, and making room for a page and writing it into slabs
+ *    happen together while synchronized on this store.
+ *
+ * The store can be saved to and loaded from a snapshot file, so that a restarted
+ * mediator keeps the pages it had cached.
+ */
+class PageStore {
+
+	private final SlabStore slabs;
+	private final Cache<PageText> pages;
+
+	/**
+	 * Create a page store.
+	 *
+	 * @param budget the number of off-heap bytes available for page text
+	 * @param timeout the duration, in seconds, a page stays in the store
+	 */
+	PageStore(long budget, int timeout){
+		this.slabs = new SlabStore(budget);
+		this.pages = new Cache<>(slabs.budget(), timeout, page -> Math.max(1, slabs.footprint(page.length())),
+				new TinyLfuPolicy(), PageText::release);
+	}
+
+	/**
+	 * Returns the text of a page stored in this store.
+	 *
+	 * @param title the title of the page
+	 * @return the text of the page
+	 * @throws NoSuchObjectException if the page is not in this store
+	 */
+	String get(String title) throws NoSuchObjectException {
+		PageText page = pages.get(title);
+		try {
+			return page.text();
+		} catch (IllegalStateException e) {
+			// evicted by another thread between the lookup and the read
+			throw new NoSuchObjectException();
+		}
+	}
+
+	/**
+	 * Stores the text of a page, evicting other pages if needed.
+	 * Pages too large to ever fit, or not worth the pages they would evict, are not stored.
+	 *
+	 * @param title the title of the page
+	 * @param text the text of the page
+	 */
+	void put(String title, String text){
+		PageText page = write(title, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+		if (page != null) {
+			pages.put(page);
+		}
+	}
+
+	/**
+	 * Saves every page in this store to a snapshot file.
+	 *
+	 * @param file the snapshot file to replace
+	 * @throws IOException if the file cannot be written
+	 */
+	void save(Path file) throws IOException {
+		CacheSnapshot.save(pages, file, page -> {
+			try {
+				return page.bytes();
+			} catch (IllegalStateException e) {
+				// evicted since the entries were listed
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Adds the pages saved in a snapshot file to this store, copying their text
+	 * straight from the mapped file into slabs. Does nothing if the file does not exist.
+	 *
+	 * @param file the snapshot file
+	 * @return the number of pages loaded
+	 * @throws IOException if the file cannot be read
+	 */
+	int load(Path file) throws IOException {
+		return CacheSnapshot.load(pages, file, this::write);
+	}
+
+	/**
+	 * Copies page text into slabs, evicting pages until it fits as long as the policy
+	 * admits the page at the expense of each of them.
+	 *
+	 * @param title the title of the page
+	 * @param bytes the UTF-8 text of the page
+	 * @return the stored page, or null if it cannot fit or is turned away
+	 */
+	private PageText write(String title, ByteBuffer bytes){
+		if (slabs.footprint(bytes.remaining()) > slabs.budget()) {
+			return null;
+		}
+		synchronized (this) {
+			SlabStore.Block block;
+			while ((block = slabs.write(bytes)) == null) {
+				if (!pages.evictFor(title)) {
+					return null;
+				}
+			}
+			return new PageText(title, block);
+		}
+	}
+
+}
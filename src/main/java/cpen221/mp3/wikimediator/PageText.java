@@ -0,0 +1,65 @@
+package cpen221.mp3.wikimediator;
+
+import cpen221.mp3.cache.Cacheable;
+import cpen221.mp3.cache.SlabStore;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Abstraction Function:
+ *    A PageText is the text of the Wikipedia page titled id, stored as UTF-8
+ *    in an off-heap block so that it does not take up space on the Java heap.
+ *    The text is only decoded when it is asked for.
+ *
+ * Representation Invariant:
+ *    title and block are not null
+ *    title refers to the exact title of an existing Wikipedia page
+ *
+ */
+class PageText implements Cacheable {
+
+	private final String title;
+	private final SlabStore.Block block;
+
+	PageText(String title, SlabStore.Block block){
+		this.title = title;
+		this.block = block;
+	}
+
+	public String id(){
+		return title;
+	}
+
+	/**
+	 * @return the number of off-heap bytes holding the page text
+	 */
+	int length(){
+		return block.length();
+	}
+
+	/**
+	 * Decodes the page text.
+	 *
+	 * @return the full text of the page
+	 * @throws IllegalStateException if the text has been released
+	 */
+	String text(){
+		return new String(bytes(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return a heap copy of the UTF-8 page text
+	 * @throws IllegalStateException if the text has been released
+	 */
+	byte[] bytes(){
+		return block.read();
+	}
+
+	/**
+	 * Gives the off-heap space holding the text back to its store.
+	 */
+	void release(){
+		block.free();
+	}
+
+}
@@ -0,0 +1,105 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.Arrays;
+
+/**
+ * Logs the times requests are made and keeps the largest number of requests made within
+ * any window of a fixed length, updating it as each request is logged.
+ *
+ * Abstraction Function:
+ *    times[start..size-1] are the times, in milliseconds and in non-decreasing order, of the
+ *    requests made in the window ending at the latest request, times[size-1]; earlier
+ *    requests can never again share a window with a new request, so they are dropped.
+ *    peak is the largest number of requests logged within window milliseconds of one another,
+ *    that is, with the first less than window milliseconds before the last.
+ *
+ * Representation Invariant:
+ *    window > 0, 0 <= start <= size <= times.length
+ *    times[start..size-1] is non-decreasing, and times[size-1] - times[start] < window
+ *    peak >= size - start
+ *
+ * Thread Safety:
+ *    every method is synchronized on the log; each does a constant amount of work,
+ *    apart from occasionally moving the live window to the front of times.
+ */
+class RequestLog {
+
+	/* the log starts with room for 1024 requests and doubles as needed */
+	private static final int INITIAL_SIZE = 1024;
+
+	private final long window;
+	private long[] times = new long[INITIAL_SIZE];
+	private int start;
+	private int size;
+	private int peak;
+
+	/**
+	 * Create an empty log.
+	 *
+	 * @param window the length of the window in milliseconds, requires window > 0
+	 */
+	RequestLog(long window){
+		this.window = window;
+	}
+
+	/**
+	 * Logs a request. A request logged earlier than the latest one is treated as if it
+	 * had been made at the same time, as happens when threads log requests out of order.
+	 *
+	 * @param time the time of the request in milliseconds
+	 */
+	synchronized void record(long time){
+		if (size > start && time < times[size - 1]) {
+			time = times[size - 1];
+		}
+		if (size == times.length) {
+			makeRoom();
+		}
+		times[size++] = time;
+		while (time - times[start] >= window) {
+			start++;
+		}
+		peak = Math.max(peak, size - start);
+	}
+
+	/**
+	 * @return the largest number of requests logged within one window
+	 */
+	synchronized int peak(){
+		return peak;
+	}
+
+	/**
+	 * @return the times of the requests in the window ending at the latest request, oldest first
+	 */
+	synchronized long[] recent(){
+		return Arrays.copyOfRange(times, start, size);
+	}
+
+	/**
+	 * Adds the requests of an earlier log, as when reloading a saved log. Requires that
+	 * no request has been logged since the log was created.
+	 *
+	 * @param peak the peak of the earlier log
+	 * @param recent the requests in the earlier log's last window, oldest first
+	 */
+	synchronized void restore(int peak, long[] recent){
+		for (long time : recent) {
+			record(time);
+		}
+		this.peak = Math.max(this.peak, peak);
+	}
+
+	/**
+	 * Frees room at the end of times, moving the requests in the window to its front,
+	 * or growing times if they fill more than half of it.
+	 */
+	private void makeRoom(){
+		int live = size - start;
+		long[] to = live > times.length / 2 ? new long[times.length * 2] : times;
+		System.arraycopy(times, start, to, 0, live);
+		times = to;
+		start = 0;
+		size = live;
+	}
+}
@@ -0,0 +1,135 @@
+package cpen221.mp3.wikimediator;
+
+import cpen221.mp3.cache.Cache;
+import cpen221.mp3.cache.Cacheable;
+import cpen221.mp3.cache.LruPolicy;
+import cpen221.mp3.cache.NoSuchObjectException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers the results of recent requests, so that a request repeated within the timeout
+ * is answered without asking Wikipedia again.
+ *
+ * Abstraction Function:
+ *    results maps the key of each request, made of its type, its normalized query and the
+ *    parameter (such as hops) that changes its answer, to the titles it returned. If that
+ *    Result is complete its titles are the whole answer, and any limit is served by the
+ *    first titles; otherwise they are the answer for a limit of titles.size(), and serve
+ *    any smaller limit. The weight of a Result is its number of titles plus one.
+ *
+ * Representation Invariant:
+ *    results is not null
+ *    for each Result r in results, r.titles is not null and r.id() is the key of its request
+ *
+ * Thread Safety:
+ *    results is a thread-safe Cache and Results are immutable.
+ */
+class ResultCache {
+
+	/* separates the parts of a key; not found in titles or queries */
+	private static final char SEPARATOR = '\u0000';
+
+	private final Cache<Result> results;
+
+	/**
+	 * Create a result cache.
+	 *
+	 * @param maxTitles the number of titles the cache can hold across all results
+	 * @param timeout the duration, in seconds, a result is reused for
+	 */
+	ResultCache(long maxTitles, int timeout){
+		this.results = new Cache<>(maxTitles, timeout, r -> r.titles.size() + 1L, new LruPolicy(), r -> { });
+	}
+
+	/**
+	 * Finds the remembered answer to a request.
+	 *
+	 * @param type the type of the request
+	 * @param query the normalized query of the request
+	 * @param param the parameter of the request that is not a limit, or 0 if it has none
+	 * @param limit the number of titles wanted, requires limit >= 0
+	 * @return the first limit titles of the answer, or null if they are not known
+	 */
+	List<String> get(String type, String query, int param, int limit){
+		Result result;
+		try {
+			result = results.get(key(type, query, param));
+		} catch (NoSuchObjectException e) {
+			return null;
+		}
+		if (!result.serves(limit)) {
+			return null;
+		}
+		return new ArrayList<>(result.titles.subList(0, Math.min(limit, result.titles.size())));
+	}
+
+	/**
+	 * Remembers the answer to a request, unless a more complete answer is already known.
+	 *
+	 * @param type the type of the request
+	 * @param query the normalized query of the request
+	 * @param param the parameter of the request that is not a limit, or 0 if it has none
+	 * @param titles the titles the request returned
+	 * @param complete true if titles is the whole answer rather than the first titles of it
+	 */
+	void put(String type, String query, int param, List<String> titles, boolean complete){
+		String key = key(type, query, param);
+		try {
+			Result known = results.get(key);
+			if (known.complete || (!complete && known.titles.size() >= titles.size())) {
+				return;
+			}
+		} catch (NoSuchObjectException e) {
+			// nothing known yet
+		}
+		results.put(new Result(key, List.copyOf(titles), complete));
+	}
+
+	/**
+	 * Forgets the answers to a request, whatever its parameter.
+	 *
+	 * @param type the type of the request
+	 * @param query the normalized query of the request
+	 */
+	void invalidate(String type, String query){
+		String prefix = type + SEPARATOR + query + SEPARATOR;
+		for (String key : results.ids()) {
+			if (key.startsWith(prefix)) {
+				results.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Forgets every answer.
+	 */
+	void invalidateAll(){
+		results.clear();
+	}
+
+	private static String key(String type, String query, int param){
+		return type + SEPARATOR + query + SEPARATOR + param;
+	}
+
+	private static final class Result implements Cacheable {
+		private final String key;
+		private final List<String> titles;
+		private final boolean complete;
+
+		Result(String key, List<String> titles, boolean complete){
+			this.key = key;
+			this.titles = titles;
+			this.complete = complete;
+		}
+
+		public String id(){
+			return key;
+		}
+
+		boolean serves(int limit){
+			return complete || titles.size() >= limit;
+		}
+	}
+}
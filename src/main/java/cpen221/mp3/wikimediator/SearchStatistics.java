@@ -0,0 +1,51 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the searches made of a WikiMediator, for zeitgeist and trending.
+ * Implementations are thread-safe.
+ */
+interface SearchStatistics {
+
+	/**
+	 * Counts a search.
+	 *
+	 * @param query what was searched for
+	 * @param now the time of the search in milliseconds
+	 */
+	void record(String query, long now);
+
+	/**
+	 * @param limit the number of queries wanted
+	 * @return up to limit of the queries searched most often, most searched first
+	 */
+	List<String> mostFrequent(int limit);
+
+	/**
+	 * @param limit the number of queries wanted
+	 * @param now the end of the window in milliseconds
+	 * @return up to limit of the queries searched most often in the window ending at now,
+	 *         most searched first
+	 */
+	List<String> trending(int limit, long now);
+
+	/**
+	 * @return the number of distinct queries searched
+	 */
+	long distinctQueries();
+
+	/**
+	 * @return the queries whose counts are kept, with their counts, most searched first
+	 */
+	List<Map.Entry<String, Long>> counts();
+
+	/**
+	 * Adds to the count of a query, as when reloading saved counts.
+	 *
+	 * @param query the query
+	 * @param count the number of searches, requires count > 0
+	 */
+	void restore(String query, long count);
+}
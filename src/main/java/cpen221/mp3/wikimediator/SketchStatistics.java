@@ -0,0 +1,249 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Search statistics kept in a fixed amount of memory, however many distinct queries are
+ * searched. Counts are estimated by Count-Min sketches, which may overestimate a count by
+ * epsilon times the searches counted with probability delta; only the topK queries with the
+ * highest estimates are remembered by name, and the number of distinct queries is estimated
+ * by a HyperLogLog.
+ *
+ * Abstraction Function:
+ *    total estimates the number of searches for each query, and top holds the queries with
+ *    the highest estimates. slots is a ring with one slot per second of the trending window:
+ *    the slot at (s mod slots.length()) estimates the searches made during second s, and
+ *    holds the most searched of them, if its second is s. distinct estimates the number of
+ *    distinct queries searched.
+ *
+ * Representation Invariant:
+ *    epsilon, delta, topK and slots.length() are positive
+ *    each non-null slot at index i has second mod slots.length() == i
+ *
+ * Thread Safety:
+ *    the sketches are updated by atomic increments and the slots replaced by compareAndSet;
+ *    each TopQueries is thread-safe, and only takes its lock for a query whose estimate is
+ *    high enough for it to be among the most searched.
+ */
+class SketchStatistics implements SearchStatistics {
+
+	private final double epsilon;
+	private final double delta;
+	private final int topK;
+	private final CountMinSketch total;
+	private final TopQueries top;
+	private final AtomicReferenceArray<Slot> slots;
+	private final HyperLogLog distinct;
+
+	/**
+	 * Create empty statistics.
+	 *
+	 * @param epsilon the largest overestimate of a count, as a fraction of the searches
+	 *                counted, requires 0 < epsilon < 1; also the relative error of the
+	 *                number of distinct queries, within what a HyperLogLog allows
+	 * @param delta the probability a count is out by more than epsilon, requires 0 < delta < 1
+	 * @param topK the number of most searched queries remembered, requires topK > 0
+	 * @param window the length of the trending window in seconds, requires window > 0
+	 */
+	SketchStatistics(double epsilon, double delta, int topK, int window){
+		this.epsilon = epsilon;
+		this.delta = delta;
+		this.topK = topK;
+		this.total = new CountMinSketch(epsilon, delta);
+		this.top = new TopQueries(topK);
+		this.slots = new AtomicReferenceArray<>(window);
+		this.distinct = new HyperLogLog(HyperLogLog.precisionFor(epsilon));
+	}
+
+	@Override
+	public void record(String query, long now){
+		long hash = CountMinSketch.hash(query);
+		top.offer(query, total.add(hash));
+		Slot slot = slot(now / 1000);
+		slot.top.offer(query, slot.sketch.add(hash));
+		distinct.add(hash);
+	}
+
+	@Override
+	public List<String> mostFrequent(int limit){
+		return top.top(limit);
+	}
+
+	@Override
+	public List<String> trending(int limit, long now){
+		long second = now / 1000;
+		List<Slot> live = new ArrayList<>();
+		Set<String> candidates = new HashSet<>();
+		for (int i = 0; i < slots.length(); i++) {
+			Slot slot = slots.get(i);
+			if (slot != null && slot.second > second - slots.length() && slot.second <= second) {
+				live.add(slot);
+				candidates.addAll(slot.top.queries());
+			}
+		}
+
+		// a query searched often in the window was among the most searched of some second
+		TopQueries window = new TopQueries(Math.max(1, limit));
+		for (String query : candidates) {
+			long hash = CountMinSketch.hash(query);
+			long count = 0;
+			for (Slot slot : live) {
+				count += slot.sketch.estimate(hash);
+			}
+			window.offer(query, count);
+		}
+		return window.top(limit);
+	}
+
+	@Override
+	public long distinctQueries(){
+		return distinct.estimate();
+	}
+
+	@Override
+	public List<Map.Entry<String, Long>> counts(){
+		return top.entries();
+	}
+
+	@Override
+	public void restore(String query, long count){
+		long hash = CountMinSketch.hash(query);
+		top.offer(query, total.add(hash, count));
+		distinct.add(hash);
+	}
+
+	/**
+	 * Finds the slot for a second, starting it again if it holds a second that has left
+	 * the window.
+	 */
+	private Slot slot(long second){
+		int index = (int) (second % slots.length());
+		Slot slot = slots.get(index);
+		while (slot == null || slot.second < second) {
+			Slot fresh = new Slot(second, epsilon, delta, topK);
+			if (slots.compareAndSet(index, slot, fresh)) {
+				slot = fresh;
+			} else {
+				slot = slots.get(index);
+			}
+		}
+		return slot;
+	}
+
+	private static final class Slot {
+		private final long second;
+		private final CountMinSketch sketch;
+		private final TopQueries top;
+
+		Slot(long second, double epsilon, double delta, int topK){
+			this.second = second;
+			this.sketch = new CountMinSketch(epsilon, delta);
+			this.top = new TopQueries(topK);
+		}
+	}
+
+	/**
+	 * The queries with the highest estimated counts seen so far, up to a fixed number.
+	 *
+	 * Abstraction Function:
+	 *    counts maps each query held to its latest estimate, and ranked orders the same
+	 *    queries from highest estimate to lowest. floor is the lowest estimate held once
+	 *    the queries fill capacity, and 0 until then.
+	 *
+	 * Representation Invariant:
+	 *    counts.size() == ranked.size() <= capacity
+	 *
+	 * Thread Safety:
+	 *    counts and ranked are only used while synchronized on 'this'. An estimate no higher
+	 *    than the volatile floor cannot change what is held, so it is dropped without locking.
+	 */
+	private static final class TopQueries {
+		private final int capacity;
+		private final Map<String, Ranked> counts = new HashMap<>();
+		private final TreeSet<Ranked> ranked = new TreeSet<>();
+		private volatile long floor;
+
+		TopQueries(int capacity){
+			this.capacity = capacity;
+		}
+
+		void offer(String query, long count){
+			if (count <= floor) {
+				return;
+			}
+			synchronized (this) {
+				Ranked known = counts.get(query);
+				if (known != null) {
+					if (count <= known.count) {
+						return;
+					}
+					ranked.remove(known);
+				} else if (counts.size() == capacity) {
+					Ranked lowest = ranked.pollLast();
+					if (lowest.count >= count) {
+						ranked.add(lowest);
+						return;
+					}
+					counts.remove(lowest.query);
+				}
+				Ranked entry = new Ranked(query, count);
+				counts.put(query, entry);
+				ranked.add(entry);
+				if (counts.size() == capacity) {
+					floor = ranked.last().count;
+				}
+			}
+		}
+
+		synchronized List<String> top(int limit){
+			List<String> top = new ArrayList<>();
+			for (Ranked r : ranked) {
+				if (top.size() >= limit) {
+					break;
+				}
+				top.add(r.query);
+			}
+			return top;
+		}
+
+		synchronized List<Map.Entry<String, Long>> entries(){
+			List<Map.Entry<String, Long>> entries = new ArrayList<>(ranked.size());
+			for (Ranked r : ranked) {
+				entries.add(Map.entry(r.query, r.count));
+			}
+			return entries;
+		}
+
+		synchronized List<String> queries(){
+			return new ArrayList<>(counts.keySet());
+		}
+	}
+
+	/**
+	 * A query and its estimate, ordered from highest estimate to lowest.
+	 */
+	private static final class Ranked implements Comparable<Ranked> {
+		private final String query;
+		private final long count;
+
+		Ranked(String query, long count){
+			this.query = query;
+			this.count = count;
+		}
+
+		@Override
+		public int compareTo(Ranked other){
+			if (count != other.count) {
+				return Long.compare(other.count, count);
+			}
+			return query.compareTo(other.query);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts how often each item is seen and keeps the items ranked by count as they are counted,
+ * so the most frequent items can be listed without sorting. If more distinct items are seen
+ * than the summary has room for, the least frequent item is replaced by the new one, which
+ * takes over its count (the space-saving algorithm): counts are then overestimates, by at
+ * most the count of the item replaced, but every item seen more than n / capacity times out
+ * of n is still counted.
+ *
+ * Abstraction Function:
+ *    counters maps each item being counted to its counter. Each counter belongs to the
+ *    bucket holding its count, and buckets form a list from the highest count (highest)
+ *    to the lowest (lowest); the counters of a bucket are listed in the order they reached
+ *    its count. Items counted by record but not yet added to the buckets wait in pending.
+ *
+ * Representation Invariant:
+ *    capacity > 0, counters.size() <= capacity
+ *    counts strictly decrease from highest to lowest, and every bucket has a counter
+ *    each counter in counters is in exactly one bucket, and no other counter is in a bucket
+ *
+ * Thread Safety:
+ *    the buckets and counters are only used while holding lock. record never waits for
+ *    lock: it queues the item in pending and adds the pending items only if the lock is free.
+ *    Every other method adds every pending item before it reads the counts.
+ */
+class StreamSummary {
+
+	private final int capacity;
+	private final Map<String, Counter> counters = new HashMap<>();
+	private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private Bucket highest;
+	private Bucket lowest;
+
+	/**
+	 * Create an empty summary.
+	 *
+	 * @param capacity the number of distinct items counted at once, requires capacity > 0;
+	 *                 Integer.MAX_VALUE counts every item exactly
+	 */
+	StreamSummary(int capacity){
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Counts one sighting of an item.
+	 *
+	 * @param item the item seen
+	 */
+	void record(String item){
+		pending.offer(item);
+		if (lock.tryLock()) {
+			try {
+				drain();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Counts several sightings of an item at once, as when reloading saved counts.
+	 *
+	 * @param item the item seen
+	 * @param n the number of sightings, requires n > 0
+	 */
+	void add(String item, long n){
+		lock.lock();
+		try {
+			drain();
+			increment(item, n);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lists the most frequent items. Takes time proportional to limit, however many items
+	 * are counted.
+	 *
+	 * @param limit the number of items wanted
+	 * @return up to limit items, most frequent first; of items counted equally often, the
+	 *         one that reached the count first comes first
+	 */
+	List<String> top(int limit){
+		lock.lock();
+		try {
+			drain();
+			List<String> top = new ArrayList<>(Math.max(0, Math.min(limit, counters.size())));
+			for (Bucket b = highest; b != null && top.size() < limit; b = b.lower) {
+				for (Counter c = b.first; c != null && top.size() < limit; c = c.next) {
+					top.add(c.item);
+				}
+			}
+			return top;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lists every item counted with its count, most frequent first.
+	 *
+	 * @return the items and their counts
+	 */
+	List<Map.Entry<String, Long>> entries(){
+		lock.lock();
+		try {
+			drain();
+			List<Map.Entry<String, Long>> entries = new ArrayList<>(counters.size());
+			for (Bucket b = highest; b != null; b = b.lower) {
+				for (Counter c = b.first; c != null; c = c.next) {
+					entries.add(Map.entry(c.item, b.count));
+				}
+			}
+			return entries;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of distinct items being counted
+	 */
+	int size(){
+		lock.lock();
+		try {
+			drain();
+			return counters.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the pending items. Requires lock to be held.
+	 */
+	private void drain(){
+		String item;
+		while ((item = pending.poll()) != null) {
+			increment(item, 1);
+		}
+	}
+
+	/**
+	 * Adds n to the count of item, replacing the least frequent item if item is new and
+	 * the summary is full. Requires lock to be held.
+	 */
+	private void increment(String item, long n){
+		Counter c = counters.get(item);
+		if (c == null && counters.size() < capacity) {
+			c = new Counter(item);
+			counters.put(item, c);
+			attach(c, n, null);
+			return;
+		}
+		if (c == null) {
+			// replace the item that reached the lowest count first
+			c = lowest.first;
+			counters.remove(c.item);
+			c.item = item;
+			counters.put(item, c);
+		}
+		Bucket from = c.bucket;
+		// look for the new count's bucket from one that stays in the list
+		Bucket below = from.first == from.last ? from.lower : from;
+		detach(c);
+		attach(c, from.count + n, below);
+	}
+
+	/**
+	 * Adds c to the end of the bucket for count, creating the bucket if needed. The search
+	 * for it starts from below, which must be in the list with a count no higher than count,
+	 * or from lowest if below is null.
+	 */
+	private void attach(Counter c, long count, Bucket below){
+		if (below == null && lowest != null && lowest.count <= count) {
+			below = lowest;
+		}
+		if (below != null) {
+			while (below.higher != null && below.higher.count <= count) {
+				below = below.higher;
+			}
+		}
+
+		Bucket target;
+		if (below != null && below.count == count) {
+			target = below;
+		} else {
+			target = new Bucket(count);
+			target.lower = below;
+			target.higher = below == null ? lowest : below.higher;
+			if (target.lower != null) {
+				target.lower.higher = target;
+			} else {
+				lowest = target;
+			}
+			if (target.higher != null) {
+				target.higher.lower = target;
+			} else {
+				highest = target;
+			}
+		}
+
+		c.bucket = target;
+		c.prev = target.last;
+		c.next = null;
+		if (target.last != null) {
+			target.last.next = c;
+		} else {
+			target.first = c;
+		}
+		target.last = c;
+	}
+
+	/**
+	 * Removes c from its bucket, and unlinks the bucket if it is left empty.
+	 */
+	private void detach(Counter c){
+		Bucket b = c.bucket;
+		if (c.prev != null) {
+			c.prev.next = c.next;
+		} else {
+			b.first = c.next;
+		}
+		if (c.next != null) {
+			c.next.prev = c.prev;
+		} else {
+			b.last = c.prev;
+		}
+		c.prev = null;
+		c.next = null;
+		c.bucket = null;
+		if (b.first == null) {
+			if (b.lower != null) {
+				b.lower.higher = b.higher;
+			} else {
+				lowest = b.higher;
+			}
+			if (b.higher != null) {
+				b.higher.lower = b.lower;
+			} else {
+				highest = b.lower;
+			}
+		}
+	}
+
+	private static final class Bucket {
+		private final long count;
+		private Bucket higher;
+		private Bucket lower;
+		private Counter first;
+		private Counter last;
+
+		Bucket(long count){
+			this.count = count;
+		}
+	}
+
+	private static final class Counter {
+		private String item;
+		private Bucket bucket;
+		private Counter prev;
+		private Counter next;
+
+		Counter(String item){
+			this.item = item;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the searches for each title over the last few seconds, so that the most searched
+ * titles of that window can be found without looking at any older searches.
+ *
+ * Abstraction Function:
+ *    buckets is a ring with one slot per second of the window. The bucket in slot
+ *    (s mod buckets.length()) counts the searches for each title made during second s,
+ *    if its second is s; a bucket whose second has left the window holds older searches,
+ *    which are ignored and are discarded when its slot is next needed.
+ *
+ * Representation Invariant:
+ *    buckets.length() > 0
+ *    each non-null bucket in slot i has second mod buckets.length() == i
+ *    every counter in a bucket has sum() >= 1
+ *
+ * Thread Safety:
+ *    a slot is only replaced by compareAndSet and a bucket's counters are LongAdders
+ *    in a ConcurrentHashMap, so searches are recorded without locking. top reads each
+ *    counter once; searches recorded while it runs may or may not be included.
+ */
+class TrendWindow {
+
+	private final AtomicReferenceArray<Bucket> buckets;
+
+	/**
+	 * Create an empty window.
+	 *
+	 * @param seconds the length of the window in seconds, requires seconds > 0
+	 */
+	TrendWindow(int seconds){
+		this.buckets = new AtomicReferenceArray<>(seconds);
+	}
+
+	/**
+	 * Counts a search.
+	 *
+	 * @param title what was searched for
+	 * @param now the time of the search in milliseconds, no earlier than window's length
+	 *            before the latest search recorded
+	 */
+	void record(String title, long now){
+		long second = now / 1000;
+		int slot = (int) (second % buckets.length());
+		Bucket bucket = buckets.get(slot);
+		while (bucket == null || bucket.second < second) {
+			// the slot holds a second that has left the window: start it again
+			Bucket fresh = new Bucket(second);
+			if (buckets.compareAndSet(slot, bucket, fresh)) {
+				bucket = fresh;
+			} else {
+				bucket = buckets.get(slot);
+			}
+		}
+		LongAdder count = bucket.counts.get(title);
+		if (count == null) {
+			count = bucket.counts.computeIfAbsent(title, t -> new LongAdder());
+		}
+		count.increment();
+	}
+
+	/**
+	 * Finds the most searched titles in the window ending at now.
+	 *
+	 * @param limit the number of titles wanted, requires limit >= 0
+	 * @param now the end of the window in milliseconds
+	 * @return up to limit titles searched in the window, most searched first; titles searched
+	 *         equally often are in no particular order
+	 */
+	List<String> top(int limit, long now){
+		long second = now / 1000;
+		Map<String, Long> totals = new HashMap<>();
+		for (int i = 0; i < buckets.length(); i++) {
+			Bucket bucket = buckets.get(i);
+			if (bucket != null && bucket.second > second - buckets.length() && bucket.second <= second) {
+				for (Map.Entry<String, LongAdder> e : bucket.counts.entrySet()) {
+					Long total = totals.get(e.getKey());
+					totals.put(e.getKey(), total == null ? e.getValue().sum() : total + e.getValue().sum());
+				}
+			}
+		}
+		if (limit <= 0) {
+			return new ArrayList<>();
+		}
+
+		// keep the limit most searched titles; the root is the least of them
+		PriorityQueue<Ranked> heap = new PriorityQueue<>(Math.min(limit, totals.size()) + 1);
+		int order = 0;
+		for (Map.Entry<String, Long> e : totals.entrySet()) {
+			Ranked ranked = new Ranked(e.getKey(), e.getValue(), order++);
+			if (heap.size() < limit) {
+				heap.add(ranked);
+			} else if (heap.peek().compareTo(ranked) < 0) {
+				heap.poll();
+				heap.add(ranked);
+			}
+		}
+		String[] top = new String[heap.size()];
+		for (int i = top.length - 1; i >= 0; i--) {
+			top[i] = heap.poll().title;
+		}
+		return new ArrayList<>(Arrays.asList(top));
+	}
+
+	private static final class Bucket {
+		private final long second;
+		private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+		Bucket(long second){
+			this.second = second;
+		}
+	}
+
+	/**
+	 * A title and its count, ordered from least to most searched. Of two titles searched
+	 * equally often, the one seen earlier while totalling ranks higher.
+	 */
+	private static final class Ranked implements Comparable<Ranked> {
+		private final String title;
+		private final long count;
+		private final int order;
+
+		Ranked(String title, long count, int order){
+			this.title = title;
+			this.count = count;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Ranked other){
+			if (count != other.count) {
+				return Long.compare(count, other.count);
+			}
+			return Integer.compare(other.order, order);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cpen221.mp3.query.QuerySource;
+
+/**
+ * Where a WikiMediator gets its pages from: Wikipedia itself, through JWikiBackend, or an
+ * InMemoryWiki that answers without the network. Also answers the questions of structured
+ * queries. Implementations are thread-safe.
+ *
+ * The batch methods may leave out titles they could not answer, as Wikipedia does when it
+ * reports a title under a different spelling; the mediator then asks for those one at a time.
+ */
+public interface WikiBackend extends QuerySource {
+
+	/**
+	 * @param prefix the start of the titles wanted
+	 * @param limit the number of titles wanted, requires limit > 0
+	 * @return up to limit titles of pages starting with prefix, or null if none could be found
+	 */
+	List<String> allPages(String prefix, int limit);
+
+	/**
+	 * @return the text of the page titled title; empty or null if there is no such page
+	 */
+	String getPageText(String title);
+
+	/**
+	 * @param titles the titles of the pages
+	 * @return a map from titles to the texts of their pages, made in one request if possible
+	 */
+	default Map<String, String> getPageTexts(List<String> titles) {
+		Map<String, String> texts = new HashMap<>();
+		for (String title : titles) {
+			texts.put(title, getPageText(title));
+		}
+		return texts;
+	}
+
+	/**
+	 * @return the titles of the pages linked to by the page titled title
+	 */
+	List<String> getLinksOnPage(String title);
+
+	/**
+	 * @param titles the titles of the pages
+	 * @return a map from titles to the pages their pages link to, made in one request if possible
+	 */
+	default Map<String, List<String>> getLinksOnPages(List<String> titles) {
+		Map<String, List<String>> links = new HashMap<>();
+		for (String title : titles) {
+			links.put(title, getLinksOnPage(title));
+		}
+		return links;
+	}
+
+	/**
+	 * @return the titles of the pages linking to the page titled title
+	 */
+	List<String> whatLinksHere(String title);
+
+	/**
+	 * @param titles the titles of the pages
+	 * @return a map from titles to the pages linking to their pages, made in one request if possible
+	 */
+	default Map<String, List<String>> whatLinksHere(List<String> titles) {
+		Map<String, List<String>> links = new HashMap<>();
+		for (String title : titles) {
+			links.put(title, whatLinksHere(title));
+		}
+		return links;
+	}
+}
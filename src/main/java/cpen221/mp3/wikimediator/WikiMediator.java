@@ -1,57 +1,415 @@
 package cpen221.mp3.wikimediator;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.stream.Collectors;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import cpen221.mp3.cache.CacheSnapshot;
 import cpen221.mp3.cache.NoSuchObjectException;
-import com.google.gson.internal.LinkedTreeMap;
-import cpen221.mp3.cache.Cache;
-import fastily.jwiki.core.*;
-import javafx.util.Pair;
+import cpen221.mp3.query.QueryEngine;
+import cpen221.mp3.query.QueryPlan;
+import cpen221.mp3.query.QuerySource;
 
 /**
  * Represents a WikiMediator that uses an API to interact with Wikipedia
  *
  * Abstraction Function:
- *     'this' is a Wikimediator with a Wiki, called wiki, being the main entry point to
- *     the jWiki API. It contains three HashMaps:
+ *     'this' is a Wikimediator with a WikiBackend, called wiki, through which it reaches
+ *     Wikipedia, by default through the jWiki API. It contains two HashMaps and its search statistics:
  *        a timeMap that maps a query to the time it was last accessed
- *          (either by using simpleSearch/getPage or through the cache)
- *        a freqMap that maps the query to the number of times it has
- *          been accessed (either by using simpleSearch/getPage or through the cache)
+ *          (either by using simpleSearch/getPage or through the cache),
+ *          which is left empty when the statistics are sketched
+ *        statistics that count the number of times each query has
+ *          been accessed (either by using simpleSearch/getPage or through the cache),
+ *          overall and in each of the last TREND_WINDOW seconds. They count every query
+ *          exactly, or only the most frequent queries, or, when sketched, estimate the
+ *          counts in a fixed amount of memory.
 *         a requestMap that maps the String of the type of request
- *          to the number of times the request was made.
+ *          to the last time the request was made.
+ *     Every request made of 'this' is logged in requestLog, which keeps the peak number of
+ *     requests made within PEAK_WINDOW milliseconds of one another.
+ *
+ *     'this' also contains a cache of pages, with a fixed budget of off-heap bytes and a timeout
+ *     value, which will save the title and page text searched by method getPage. Stale items will be removed.
  *
- *     'this' also contains a cache with a fixed capacity and timeout value which will
- *     save the title and page text searched by method getPage. Stale items will be removed.
+ *     Every call made through wiki holds one of the upstream permits, so at most a fixed
+ *     number of requests to Wikipedia are in flight at once, however many threads use 'this'.
+ *     pageFetches maps each title whose text is being fetched to the fetch's result, so that
+ *     concurrent misses for one title share a single request; fetched counts the pages fetched
+ *     from Wikipedia and coalesced the misses that waited for another thread's fetch instead.
+ *     Page texts and page links are fetched through batchers, which ask Wikipedia for up to
+ *     BATCH_SIZE titles in one request. Graph searches fetch up to graphParallelism batches
+ *     of links at once; getPath also follows links backward, fetched by backlinkBatcher.
+ *     Links fetched in either direction are kept in graph, which answers later searches
+ *     until GRAPH_TTL seconds have passed. If 'this' has an offline graph, graph searches
+ *     use only that graph, and wiki is null.
+ *     Structured queries are compiled by queries and run against source, which asks wiki for its facts.
+ *     results holds the answers to recent simpleSearch, executeQuery and getConnectedPages
+ *     requests, which are reused until RESULT_TTL seconds have passed or they are invalidated.
+ *
+ *     If 'this' has a directory, the cache, the two maps, the counts and the request log are saved there by checkpoint,
+ *     and loaded from there when 'this' is created.
  *
  * Representation Invariant:
- *    Domain of wiki is from wikipedia.org
- *    timeMap, wiki, freqMap, cache, and requestMap are non-null
- *    Cache capacity and timeout are greater than 0
+ *    timeMap, statistics, cache, and requestMap are non-null
+ *    timeMap is empty if statistics are sketched
+ *    exactly one of wiki and offline is non-null
+ *    Cache budget and timeout are greater than 0
  *    queries, frequencies, and dates accessed are non-null
  *    query is a non-empty String
  *    For each i in timeMap.keySet(), timeMap.get(i) > 0
- *    For each i in freqMap.keySet(), freqMap.get(i) >= 1
  *    Each i in requestMap.keySet() should correspond to the String
  *        name of a method in the WikiMediator class
  *
+ * Thread Safety:
+ *    the two maps are ConcurrentHashMaps; searches are counted in statistics without
+ *    waiting for a lock, and zeitgeist and trending see every search completed before
+ *    they began. The cache is
+ *    thread-safe and every other variable is confined to a single call, so one
+ *    WikiMediator can serve many threads at once.
+ *
  */
 
 public class WikiMediator {
-	private Wiki wiki;
+	private final WikiBackend wiki;
 	private Map<String, Long> timeMap;
-	private Map<String, Integer> freqMap;
+	private final SearchStatistics statistics;
+	private final boolean sketched;
 	private Map<String, Long> requestMap;
-	private Cache cache;
+	private PageStore cache;
+
+	/* the default page cache holds 64MB of page text */
+	public static final long CACHE_BYTES = 64L * 1024 * 1024;
+
+	/* snapshot files kept in the mediator's directory */
+	private static final String PAGES_FILE = "pages.snapshot";
+	private static final String STATISTICS_FILE = "statistics.snapshot";
+	/* "MP3S" */
+	private static final int STATISTICS_MAGIC = 0x4d503353;
+
+	/* by default at most 32 requests to Wikipedia are in flight at once */
+	public static final int MAX_UPSTREAM = 32;
+	/* Wikipedia answers queries for up to 50 titles at once */
+	public static final int BATCH_SIZE = 50;
+	/* a page fetch waits up to 5ms for others to share its request */
+	public static final long BATCH_WINDOW = 5;
+	/* by default graph searches fetch links for 8 batches of pages at once */
+	public static final int GRAPH_PARALLELISM = 8;
+	/* getPath gives up after 5 minutes */
+	public static final long PATH_TIMEOUT = 300000;
+	/* the links between pages are remembered for an hour, for up to 4 million titles */
+	public static final int GRAPH_TTL = 3600;
+	public static final int GRAPH_TITLES = 4 * 1024 * 1024;
+	/* a query about an author looks at their last 500 edits */
+	public static final int QUERY_CONTRIBS = 500;
+	/* results of searches and queries are reused for 5 minutes, up to a million titles in all */
+	public static final int RESULT_TTL = 300;
+	public static final long RESULT_TITLES = 1024 * 1024;
+	/* trending looks at the searches of the last 30 seconds */
+	public static final int TREND_WINDOW = 30;
+	/* peakLoad30s counts the requests made less than 30 seconds apart */
+	public static final long PEAK_WINDOW = 30000;
+	/* by default zeitgeist counts every query exactly */
+	public static final int ZEITGEIST_EXACT = Integer.MAX_VALUE;
+	/* sketched statistics remember the 1000 most searched queries by name */
+	public static final int SKETCH_TOP = 1000;
+
+	private File dir;
+	private final Semaphore upstream;
+	private final Map<String, CompletableFuture<String>> pageFetches = new ConcurrentHashMap<>();
+	private final LongAdder fetched = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final Batcher<String> pageBatcher;
+	private final Batcher<List<String>> linkBatcher;
+	private final Batcher<List<String>> backlinkBatcher;
+	private final LinkGraph graph = new LinkGraph(GRAPH_TTL, GRAPH_TITLES);
+	private volatile int graphParallelism = GRAPH_PARALLELISM;
+	private final OfflineGraph offline;
+	private final QuerySource source = new WikiSource();
+	private final QueryEngine queries = new QueryEngine(source);
+	private final ResultCache results = new ResultCache(RESULT_TITLES, RESULT_TTL);
+	private final RequestLog requestLog = new RequestLog(PEAK_WINDOW);
 
 	//constructor
 	public WikiMediator(){
-		this.timeMap = new HashMap<String, Long>();
-		this.wiki = new Wiki("en.wikipedia.org");
-		this.freqMap = new HashMap<>();
-		this.requestMap = new HashMap<>();
-		this.cache = new Cache(256, 12*3600);
+		this(MAX_UPSTREAM);
+	}
+
+	/**
+	 * Creates a WikiMediator that makes at most maxUpstream requests to Wikipedia at once.
+	 *
+	 * @param maxUpstream the number of concurrent requests to Wikipedia, requires maxUpstream > 0
+	 */
+	public WikiMediator(int maxUpstream){
+		this(new JWikiBackend(), maxUpstream, null,
+				new CountingStatistics(ZEITGEIST_EXACT, TREND_WINDOW));
+	}
+
+	/**
+	 * Creates a WikiMediator that makes at most maxUpstream requests to Wikipedia at once,
+	 * and that keeps the counts of at most zeitgeistQueries queries for zeitgeist. Once more
+	 * queries than that have been searched, the least searched query is forgotten to make room
+	 * for each new one, whose count starts from the forgotten query's count; so zeitgeist
+	 * takes a fixed amount of memory, its counts may be overestimates, and every query
+	 * making up more than 1 / zeitgeistQueries of all searches is still among them.
+	 *
+	 * @param maxUpstream the number of concurrent requests to Wikipedia, requires maxUpstream > 0
+	 * @param zeitgeistQueries the number of queries counted, requires zeitgeistQueries > 0
+	 */
+	public WikiMediator(int maxUpstream, int zeitgeistQueries){
+		this(new JWikiBackend(), maxUpstream, null,
+				new CountingStatistics(zeitgeistQueries, TREND_WINDOW));
+	}
+
+	/**
+	 * Creates a WikiMediator that makes at most maxUpstream requests to Wikipedia at once,
+	 * and whose statistics take a fixed amount of memory however many distinct queries are
+	 * searched. Search counts are estimated by Count-Min sketches: with probability at least
+	 * 1 - delta a count is overestimated by at most epsilon times the number of searches.
+	 * zeitgeist and trending choose among the SKETCH_TOP queries with the highest estimates,
+	 * distinctQueries is estimated by a HyperLogLog with a relative error of about epsilon
+	 * (but no better than 0.2%), and the last access times of queries are not kept.
+	 * The sketches take about 8 * e / epsilon * ln(1 / delta) bytes for each second of the
+	 * trending window, and as much again for the overall counts.
+	 *
+	 * @param maxUpstream the number of concurrent requests to Wikipedia, requires maxUpstream > 0
+	 * @param epsilon the error bound, requires 0 < epsilon < 1
+	 * @param delta the probability of exceeding the error bound, requires 0 < delta < 1
+	 */
+	public WikiMediator(int maxUpstream, double epsilon, double delta){
+		this(new JWikiBackend(), maxUpstream, null,
+				new SketchStatistics(epsilon, delta, SKETCH_TOP, TREND_WINDOW));
+	}
+
+	/**
+	 * Creates a WikiMediator whose graph searches, getConnectedPages and getPath, run
+	 * entirely against an offline graph, with no connection to Wikipedia. Its other
+	 * requests that need Wikipedia throw IllegalStateException.
+	 *
+	 * @param offline the graph of links between pages, such as one built by OfflineGraph.build
+	 */
+	public WikiMediator(OfflineGraph offline){
+		this(null, MAX_UPSTREAM, offline, new CountingStatistics(ZEITGEIST_EXACT, TREND_WINDOW));
+	}
+
+	/**
+	 * Creates a WikiMediator that gets its pages from a backend instead of Wikipedia, such
+	 * as an InMemoryWiki for testing without the network, and makes at most maxUpstream
+	 * requests to it at once.
+	 *
+	 * @param wiki the backend, not null
+	 * @param maxUpstream the number of concurrent requests to wiki, requires maxUpstream > 0
+	 */
+	public WikiMediator(WikiBackend wiki, int maxUpstream){
+		this(wiki, maxUpstream, null, new CountingStatistics(ZEITGEIST_EXACT, TREND_WINDOW));
+	}
+
+	private WikiMediator(WikiBackend wiki, int maxUpstream, OfflineGraph offline, SearchStatistics statistics){
+		this.upstream = new Semaphore(maxUpstream);
+		this.timeMap = new ConcurrentHashMap<>();
+		this.wiki = wiki;
+		this.offline = offline;
+		this.statistics = statistics;
+		this.sketched = statistics instanceof SketchStatistics;
+		this.requestMap = new ConcurrentHashMap<>();
+		this.cache = new PageStore(CACHE_BYTES, 12*3600);
+		this.pageBatcher = new Batcher<>(BATCH_SIZE, BATCH_WINDOW, titles -> {
+			Map<String, String> texts = upstream(() -> wiki.getPageTexts(titles));
+			return fillMissing(titles, texts, wiki::getPageText);
+		});
+		this.linkBatcher = new Batcher<>(BATCH_SIZE, BATCH_WINDOW, titles -> fetchLinks(titles, true));
+		this.backlinkBatcher = new Batcher<>(BATCH_SIZE, BATCH_WINDOW, titles -> fetchLinks(titles, false));
+	}
+
+	/**
+	 * Creates a WikiMediator that starts with the cache and statistics last saved
+	 * to a directory by checkpoint, and that saves to the same directory.
+	 *
+	 * @param dir the directory holding the snapshot files; created when first saved
+	 * @throws IOException if a snapshot exists but cannot be read
+	 */
+	public WikiMediator(File dir) throws IOException {
+		this(dir, MAX_UPSTREAM);
+	}
+
+	/**
+	 * Creates a WikiMediator that starts with the cache and statistics last saved
+	 * to a directory by checkpoint, saves to the same directory, and makes at most
+	 * maxUpstream requests to Wikipedia at once.
+	 *
+	 * @param dir the directory holding the snapshot files; created when first saved
+	 * @param maxUpstream the number of concurrent requests to Wikipedia, requires maxUpstream > 0
+	 * @throws IOException if a snapshot exists but cannot be read
+	 */
+	public WikiMediator(File dir, int maxUpstream) throws IOException {
+		this(maxUpstream);
+		this.dir = dir;
+		this.cache.load(new File(dir, PAGES_FILE).toPath());
+		loadStatistics(new File(dir, STATISTICS_FILE));
+	}
+
+	/**
+	 * Saves the cache and the request statistics to this mediator's directory,
+	 * replacing the previous snapshot. Does nothing if this mediator has no directory.
+	 *
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public void checkpoint() throws IOException {
+		if (dir == null) {
+			return;
+		}
+		this.cache.save(new File(dir, PAGES_FILE).toPath());
+		CacheSnapshot.write(new File(dir, STATISTICS_FILE).toPath(), STATISTICS_MAGIC, out -> {
+			List<Map.Entry<String, Long>> frequencies = this.statistics.counts();
+			out.writeInt(frequencies.size());
+			for (Map.Entry<String, Long> e : frequencies) {
+				CacheSnapshot.writeString(out, e.getKey());
+				out.writeInt((int) Math.min(e.getValue(), Integer.MAX_VALUE));
+			}
+			writeTimes(out, this.timeMap);
+			writeTimes(out, this.requestMap);
+			long[] recent = this.requestLog.recent();
+			out.writeInt(this.requestLog.peak());
+			out.writeInt(recent.length);
+			for (long time : recent) {
+				out.writeLong(time);
+			}
+		});
+	}
+
+	/**
+	 * Makes a call to Wikipedia once one of the upstream permits is free.
+	 *
+	 * @param call the call to make through wiki
+	 * @return the result of the call
+	 */
+	private <R> R upstream(Supplier<R> call) {
+		if (wiki == null) {
+			throw new IllegalStateException("an offline WikiMediator cannot reach Wikipedia");
+		}
+		upstream.acquireUninterruptibly();
+		try {
+			return call.get();
+		} finally {
+			upstream.release();
+		}
+	}
+
+	/**
+	 * Finds the links on, or to, several pages, taking them from the link graph where it
+	 * knows them and fetching the rest from Wikipedia in one request.
+	 *
+	 * @param titles the titles of the pages
+	 * @param forward true for the links on the pages, false for the pages linking to them
+	 * @return a map from each title to its links
+	 */
+	private Map<String, List<String>> fetchLinks(List<String> titles, boolean forward) {
+		Map<String, List<String>> links = new HashMap<>();
+		List<String> unknown = new ArrayList<>();
+		for (String title : titles) {
+			List<String> known = forward ? graph.links(title) : graph.backlinks(title);
+			if (known != null) {
+				links.put(title, known);
+			} else {
+				unknown.add(title);
+			}
+		}
+		if (unknown.isEmpty()) {
+			return links;
+		}
+
+		Map<String, List<String>> found = forward
+				? upstream(() -> wiki.getLinksOnPages(unknown))
+				: upstream(() -> wiki.whatLinksHere(unknown));
+		Map<String, List<String>> fetched = found == null ? new HashMap<>() : new HashMap<>(found);
+		fillMissing(unknown, fetched, forward ? wiki::getLinksOnPage : title -> wiki.whatLinksHere(title));
+		for (String title : unknown) {
+			List<String> pageLinks = fetched.get(title);
+			if (pageLinks != null) {
+				if (forward) {
+					graph.putLinks(title, pageLinks);
+				} else {
+					graph.putBacklinks(title, pageLinks);
+				}
+				links.put(title, pageLinks);
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * Looks up, one at a time, the titles a batch request left out of its result,
+	 * which happens when Wikipedia reports a title under a different spelling.
+	 *
+	 * @return found, with a value for every title
+	 */
+	private <V> Map<String, V> fillMissing(List<String> titles, Map<String, V> found, Function<String, V> single) {
+		Map<String, V> values = found == null ? new HashMap<>() : found;
+		for (String title : titles) {
+			if (values.get(title) == null) {
+				values.put(title, upstream(() -> single.apply(title)));
+			}
+		}
+		return values;
+	}
+
+	private static void writeTimes(DataOutputStream out, Map<String, Long> times) throws IOException {
+		out.writeInt(times.size());
+		for (Map.Entry<String, Long> e : times.entrySet()) {
+			CacheSnapshot.writeString(out, e.getKey());
+			out.writeLong(e.getValue());
+		}
+	}
+
+	/**
+	 * Adds the counts, timeMap, requestMap and request log saved in a statistics snapshot to those of 'this'.
+	 * Does nothing if the file does not exist.
+	 */
+	private void loadStatistics(File file) throws IOException {
+		ByteBuffer in = CacheSnapshot.map(file.toPath(), STATISTICS_MAGIC);
+		if (in == null) {
+			return;
+		}
+		try {
+			for (int i = in.getInt(); i > 0; i--) {
+				String query = CacheSnapshot.readString(in);
+				int count = in.getInt();
+				if (count > 0) {
+					this.statistics.restore(query, count);
+				}
+			}
+			readTimes(in, this.timeMap);
+			readTimes(in, this.requestMap);
+			// snapshots saved before requests were logged end here
+			if (in.hasRemaining()) {
+				int peak = in.getInt();
+				long[] recent = new long[CacheSnapshot.readLength(in, Long.BYTES)];
+				for (int i = 0; i < recent.length; i++) {
+					recent[i] = in.getLong();
+				}
+				this.requestLog.restore(peak, recent);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated snapshot: " + file, e);
+		}
+	}
+
+	private static void readTimes(ByteBuffer in, Map<String, Long> times) throws IOException {
+		for (int i = in.getInt(); i > 0; i--) {
+			String key = CacheSnapshot.readString(in);
+			times.put(key, in.getLong());
+		}
 	}
 
 	/**
@@ -62,17 +420,22 @@ public class WikiMediator {
 	 * @return a List of Strings of the page titles that match the query string
 	 */
 	public List<String> simpleSearch(String query, int limit) {
-		if(this.freqMap.containsKey(query)){
-			this.freqMap.put(query, this.freqMap.get(query)+1);
-		}else {
-			this.freqMap.put(query, 1);
-		}
-		this.timeMap.put(query, System.currentTimeMillis());
-		this.requestMap.put("simpleSearch", System.currentTimeMillis());
+		accessed(query);
+		count(query);
+		request("simpleSearch");
 		if(limit == 0) {
 			return new ArrayList<String>();
 		}
-		return wiki.allPages(query, false, false, limit, null);
+		List<String> cached = results.get("simpleSearch", query, 0, limit);
+		if (cached != null) {
+			return cached;
+		}
+		List<String> found = upstream(() -> wiki.allPages(query, limit));
+		if (found != null) {
+			// fewer titles than asked for means there are no more to find
+			results.put("simpleSearch", query, 0, found, found.size() < limit);
+		}
+		return found;
 	}
 
 	/**
@@ -86,28 +449,143 @@ public class WikiMediator {
 	public String getPage(String pageTitle) throws NoSuchObjectException {
 		String text = "";
 
-		if(this.freqMap.containsKey(pageTitle)){
-			this.freqMap.put(pageTitle, this.freqMap.get(pageTitle)+1);
-		}else {
-			this.freqMap.put(pageTitle, 1);
-		}
+		request("getPage");
+		count(pageTitle);
 
 		try {
-			Object obj = cache.get(pageTitle);
-			JSONObj jo = (JSONObj) obj;
-			text = (jo.item.get("Page Text")).toString();
+			text = cache.get(pageTitle);
 			return text;
 		}
 		catch (NoSuchObjectException e) {
-			this.timeMap.put(pageTitle, System.currentTimeMillis());
-			this.requestMap.put("getPage", System.currentTimeMillis());
-			text = wiki.getPageText(pageTitle);
-
-			cache.put(new JSONObj(pageTitle, text));
+			accessed(pageTitle);
+			text = fetchPage(pageTitle);
 		}
 		return text;
 	}
 
+	/**
+	 * Returns the text of several Wikipedia pages, taking each from the cache if it is there
+	 * and fetching the rest from Wikipedia in as few requests as possible. Each title
+	 * counts as a search, as it would with getPage.
+	 *
+	 * @param pageTitles the titles of the pages to find
+	 * @return the text of each page, in the same order as pageTitles
+	 */
+	public List<String> getPages(List<String> pageTitles) {
+		Map<String, String> texts = new HashMap<>();
+		Set<String> misses = new LinkedHashSet<>();
+		request("getPages");
+		for (String title : pageTitles) {
+			count(title);
+			if (texts.containsKey(title) || misses.contains(title)) {
+				continue;
+			}
+			try {
+				texts.put(title, cache.get(title));
+			} catch (NoSuchObjectException e) {
+				accessed(title);
+				misses.add(title);
+			}
+		}
+		if (!misses.isEmpty()) {
+			texts.putAll(fetchPages(misses));
+		}
+
+		List<String> pages = new ArrayList<>(pageTitles.size());
+		for (String title : pageTitles) {
+			pages.add(texts.get(title));
+		}
+		return pages;
+	}
+
+	/**
+	 * Fetches the text of a page that missed the cache and caches it. If another thread
+	 * is already fetching the same page, waits for and returns its result instead.
+	 *
+	 * @param pageTitle the title of the page to fetch
+	 * @return the text of the page
+	 */
+	private String fetchPage(String pageTitle) {
+		return fetchPages(Collections.singletonList(pageTitle)).get(pageTitle);
+	}
+
+	/**
+	 * Fetches the text of pages that missed the cache and caches them. Pages that another
+	 * thread is already fetching are not fetched again; their results are shared.
+	 *
+	 * @param pageTitles the titles of the pages to fetch
+	 * @return a map from each title to the text of its page
+	 */
+	private Map<String, String> fetchPages(Collection<String> pageTitles) {
+		Map<String, CompletableFuture<String>> mine = new LinkedHashMap<>();
+		Map<String, CompletableFuture<String>> others = new LinkedHashMap<>();
+		for (String title : pageTitles) {
+			CompletableFuture<String> fetch = new CompletableFuture<>();
+			CompletableFuture<String> other = pageFetches.putIfAbsent(title, fetch);
+			if (other == null) {
+				mine.put(title, fetch);
+			} else {
+				coalesced.increment();
+				others.put(title, other);
+			}
+		}
+
+		Map<String, String> texts = new HashMap<>();
+		try {
+			List<String> misses = new ArrayList<>();
+			for (String title : mine.keySet()) {
+				try {
+					// a fetch may have finished between the miss and claiming the title
+					texts.put(title, cache.get(title));
+				} catch (NoSuchObjectException e) {
+					misses.add(title);
+				}
+			}
+			fetched.add(misses.size());
+			// a single page waits briefly to share its request; a list is already a batch
+			Map<String, String> found = misses.size() == 1
+					? Collections.singletonMap(misses.get(0), pageBatcher.get(misses.get(0)))
+					: pageBatcher.getAll(misses);
+			for (String title : misses) {
+				String text = found.get(title) == null ? "" : found.get(title);
+				cache.put(title, text);
+				texts.put(title, text);
+			}
+			for (Map.Entry<String, CompletableFuture<String>> e : mine.entrySet()) {
+				e.getValue().complete(texts.get(e.getKey()));
+			}
+		} catch (RuntimeException e) {
+			for (CompletableFuture<String> fetch : mine.values()) {
+				fetch.completeExceptionally(e);
+			}
+			throw e;
+		} finally {
+			for (Map.Entry<String, CompletableFuture<String>> e : mine.entrySet()) {
+				pageFetches.remove(e.getKey(), e.getValue());
+			}
+		}
+
+		for (Map.Entry<String, CompletableFuture<String>> e : others.entrySet()) {
+			texts.put(e.getKey(), Batcher.join(e.getValue()));
+		}
+		return texts;
+	}
+
+	/**
+	 * @return the number of pages getPage has fetched from Wikipedia
+	 */
+	public long upstreamFetches() {
+		return fetched.sum();
+	}
+
+	/**
+	 * @return the number of getPage misses that shared another call's fetch
+	 *         rather than fetching the page again
+	 */
+	public long coalescedFetches() {
+		return coalesced.sum();
+	}
+
 	/**
 	 * Finds all the possible pages that can be found by following up to a max number
 	 *    of links from a specified starting point
@@ -118,93 +596,141 @@ public class WikiMediator {
 	 */
 
 	public List<String> getConnectedPages(String pageTitle, int hops){
-		Set<String> visited = new HashSet<>();
-		Queue<Pair<String, Integer>> queue = new LinkedList<>();
-		queue.add(new Pair<>(pageTitle, 0));
-
-		while (queue.size() > 0){
-			Pair parent = queue.poll();
-			if ( !visited.contains((String) parent.getKey())){
-				String title = (String) parent.getKey();
-				visited.add(title);
-				if ((int)parent.getValue() < hops) {
-					List<String> neighbours = wiki.getLinksOnPage(title);
-					int level = (int) parent.getValue() + 1;
-					for (String s : neighbours) {
-						queue.add(new Pair<>(s, level));
+		return getConnectedPages(pageTitle, hops, Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Finds pages that can be found by following up to a max number of links from a
+	 *    specified starting point, stopping early once enough pages are found or time runs out.
+	 *    The links of a whole level are fetched at once, up to the graph parallelism
+	 *    batches of pages at a time.
+	 *
+	 * @param pageTitle String name of the starting Wikipedia page
+	 * @param hops max number of links that can be followed
+	 * @param limit max number of titles returned, requires limit > 0
+	 * @param timeout max time in milliseconds to spend fetching links, requires timeout >= 0
+	 * @return a List of at most limit Strings, starting with pageTitle, that can be reached by
+	 *         following a maximum of hops links from pageTitle, nearest first. If the search was
+	 *         cut short the List holds the nearest of the pages found so far.
+	 */
+	public List<String> getConnectedPages(String pageTitle, int hops, int limit, long timeout){
+		if (offline != null) {
+			request("getConnectedPages");
+			return offline.connectedPages(pageTitle, hops, limit);
+		}
+		List<String> cached = results.get("getConnectedPages", pageTitle, hops, limit);
+		if (cached != null) {
+			request("getConnectedPages");
+			return cached;
+		}
+		long start = System.currentTimeMillis();
+		long deadline = timeout > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + timeout;
+		Set<String> visited = ConcurrentHashMap.newKeySet();
+		visited.add(pageTitle);
+		List<String> frontier = new ArrayList<>();
+		frontier.add(pageTitle);
+		// the pages found, level by level; a level cut short ends the list
+		List<String> found = new ArrayList<>();
+		found.add(pageTitle);
+		BooleanSupplier stop = () -> visited.size() >= limit || System.currentTimeMillis() > deadline;
+
+		for (int level = 0; level < hops && !frontier.isEmpty() && !stop.getAsBoolean(); level++) {
+			Queue<String> next = new ConcurrentLinkedQueue<>();
+			// a page joins the next level only the first time any thread adds it to visited
+			linkBatcher.forEach(frontier, graphParallelism, stop, (title, links) -> {
+				if (links != null) {
+					for (String s : links) {
+						if (visited.add(s)) {
+							next.add(s);
+						}
 					}
 				}
-			}
+			});
+			frontier = new ArrayList<>(next);
+			found.addAll(frontier);
 		}
 
-		this.requestMap.put("getConnectedPages", System.currentTimeMillis());
+		request("getConnectedPages");
 
-		return new ArrayList<String>(visited);
+		List<String> connected = new ArrayList<>(found.subList(0, Math.min(found.size(), limit)));
+		if (!stop.getAsBoolean()) {
+			results.put("getConnectedPages", pageTitle, hops, connected, true);
+		}
+		return connected;
+	}
+
+	/**
+	 * Sets how many batches of pages getConnectedPages fetches the links of at once.
+	 *
+	 * @param parallelism the number of batches fetched at once, requires parallelism > 0
+	 */
+	public void setGraphParallelism(int parallelism) {
+		this.graphParallelism = parallelism;
+	}
+
+	/**
+	 * Records a request of the given type, in requestMap and in requestLog.
+	 */
+	private void request(String type) {
+		long now = System.currentTimeMillis();
+		this.requestMap.put(type, now);
+		this.requestLog.record(now);
+	}
+
+	/**
+	 * Counts a search for query in statistics.
+	 */
+	private void count(String query) {
+		this.statistics.record(query, System.currentTimeMillis());
+	}
+
+	/**
+	 * Notes the time query was last accessed, unless the statistics are sketched.
+	 */
+	private void accessed(String query) {
+		if (!sketched) {
+			this.timeMap.put(query, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Estimates how many distinct queries have been searched (using simpleSearch or getPage).
+	 * The number is exact unless the statistics are bounded or sketched.
+	 *
+	 * @return the number of distinct queries searched
+	 */
+	public long distinctQueries() {
+		return this.statistics.distinctQueries();
 	}
 
 		/**
 		 * Returns the most common page titles searched for (using simpleSearch or getPage) in non-increasing order.
-		 * If multiple Strings were searched the same number of times,
-		 * they can be organized in any arbitrary order
-		 * TODO: fix this (ie. order by time searched)
+		 * If multiple Strings were searched the same number of times, the one that
+		 * reached that number first comes first. The ranking is kept up to date as
+		 * searches are made, so this takes time proportional to limit alone.
 		 *
 		 * @param limit max number of titles returned
 		 * @return a List of Strings containing the most commonly searched titles,
 		 *         up to a max number, in non-increasing order
 		 */
 	public List<String> zeitgeist(int limit){
-		Map<String, Integer> sortedFreqMap;
-		int count = 0;
-		List<String> mostCommon = new ArrayList<>();
-
-		//sorts freqMap to be in non-increasing order
-		//Source : https://howtodoinjava.com/sort/java-sort-map-by-key/?fbclid=IwAR1KZHhiAwwJCmrJmxr6A8g3M_H9NGMRk12-_J88o4xlCr2DkD1EvzAhahk
-		sortedFreqMap = this.freqMap.entrySet()
-																.stream()
-																.sorted((Map.Entry.<String, Integer>comparingByValue().reversed()))
-																.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1,e2) -> e1, LinkedHashMap::new));
-
-		this.requestMap.put("zeitgeist", System.currentTimeMillis());
-
-		for(String s: sortedFreqMap.keySet()){
-			if(count<limit) {
-				mostCommon.add(s);
-				count++;
-			}else{
-				return mostCommon;
-			}
-		}
-		return mostCommon;
+		request("zeitgeist");
+
+		return this.statistics.mostFrequent(limit);
 	}
 
 	/**
-	 * Finds and sorts the most frequent search requests (using simple search or getPage) made in the last 30secs
+	 * Finds and sorts the most frequent search requests (using simple search or getPage) made in the last 30secs,
+	 * counting only the searches made within that window
 	 *
 	 * @param limit max number of elements returned in the List
 	 * @return a List of Strings containing the most common searched titles in the
 	 *         last 30secs (up to and including), up to a max number, in non-increasing order
 	 */
 	public List<String> trending(int limit){
-		Long currTime = System.currentTimeMillis();
-		List<String> trending = new ArrayList<>();
-		Map<String, Integer> sortedFreqMap = new HashMap<>();
-
-		sortedFreqMap = this.freqMap.entrySet()
-						.stream()
-						.sorted((Map.Entry.<String, Integer>comparingByValue().reversed()))
-						.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1,e2) -> e1, LinkedHashMap::new));
-
-		for(String s: sortedFreqMap.keySet()){
-			if(currTime - timeMap.get(s)<= 30000){
-				if(trending.size()<limit) {
-					trending.add(s);
-				}else{
-					break;
-				}
-			}
-		}
+		List<String> trending = this.statistics.trending(limit, System.currentTimeMillis());
 
-		this.requestMap.put("Trending", System.currentTimeMillis());
+		request("Trending");
 
 		return trending;
 	}
@@ -213,34 +739,17 @@ public class WikiMediator {
 	/**
 	 * Finds the max number of requests seen in any 30-second window
 	 * The current call to peakLoad30s will not be counted as a request.
+	 * The peak is kept up to date as requests are made, so this takes constant time.
 	 *
 	 * @return the max number of search requests seen in any 30-second window
 	 */
 
 	public int peakLoad30s(){
-		Map<String, Long> sortedRequestMap = new TreeMap<>();
-		int requests = 0;
-
-		sortedRequestMap = this.requestMap.entrySet()
-						.stream()
-						.sorted((Map.Entry.<String, Long>comparingByValue()))
-						.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1,e2) -> e1, LinkedTreeMap::new));
-
-		for (Map.Entry e: sortedRequestMap.entrySet()){
-			Long time = (Long) e.getValue();
-			Map<String, Long> sortedEMap = sortedRequestMap.entrySet().stream()
-											.filter(e1 -> e1.getValue() >= time)
-											.filter(e1 -> e1.getValue() <= time + 30*1000)
-					.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1,e2) -> e1, LinkedTreeMap::new));
-			int size = sortedEMap.size();
-			if (size > requests){
-				requests = size;
-			}
-		}
+		int peak = this.requestLog.peak();
 
-		this.requestMap.put("peakLoad30s", System.currentTimeMillis());
+		request("peakLoad30s");
 
-		return requests;
+		return peak;
 	}
 
 	/**
@@ -254,71 +763,192 @@ public class WikiMediator {
 	 *            will be returned
 	 */
 	public List<String> getPath(String startPage, String stopPage){
-		List<String> path = new ArrayList<>();
-		Set<String> visited = new HashSet<>();
-
-		List<Pair<String, String>> tracing = new ArrayList<>();
-		List<String> tracingKeys = new ArrayList<>();
-		tracing.add(new Pair<>(startPage, "0"));
-		tracingKeys.add(startPage);
-
-		Queue<Pair<String, String>> queue = new LinkedList<>();
-		queue.add(new Pair<>(startPage, "0"));
-		boolean found = false;
+		return getPath(startPage, stopPage, PATH_TIMEOUT);
+	}
 
-		if(startPage == stopPage){
+	/**
+	 * Finds a shortest path of links between two Wikipedia pages. The search runs from both
+	 *    ends at once, forward along the links on pages from startPage and backward along the
+	 *    pages linking to stopPage, always growing the side with fewer pages to expand, until
+	 *    the two sides meet.
+	 *
+	 * @param startPage String name of Wikipedia page at which to start
+	 * @param stopPage String name of the Wikipedia page at which to end
+	 * @param timeout max time in milliseconds to search for, requires timeout >= 0
+	 * @return a List of Strings containing the links to follow to get from
+	 *         startPage to stopPage (including both the start and end pages), or
+	 *         an empty List if there is no path or none is found within timeout
+	 */
+	public List<String> getPath(String startPage, String stopPage, long timeout){
+		request("getPath");
+		if (offline != null) {
+			return offline.path(startPage, stopPage);
+		}
+		if (startPage.equals(stopPage)) {
+			List<String> path = new ArrayList<>();
 			path.add(startPage);
 			return path;
 		}
 
-		long startTime = System.currentTimeMillis();
-
-		while (queue.size() > 0 && !found){ //starting size is 1
-			if((System.currentTimeMillis() - startTime) > 300000){
-				return new ArrayList<>();
-			}
-			String parent = queue.poll().getKey();
-			if ( !visited.contains(parent)){
-				visited.add(parent);
-				List<String> neighbours = wiki.getLinksOnPage(parent);
+		long start = System.currentTimeMillis();
+		long deadline = timeout > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + timeout;
+		BooleanSupplier late = () -> System.currentTimeMillis() > deadline;
+
+		// each side maps the pages it has reached to the page it reached them from
+		Map<String, Step> forward = new ConcurrentHashMap<>();
+		Map<String, Step> backward = new ConcurrentHashMap<>();
+		forward.put(startPage, new Step(null, 0));
+		backward.put(stopPage, new Step(null, 0));
+		List<String> forwardFrontier = Collections.singletonList(startPage);
+		List<String> backwardFrontier = Collections.singletonList(stopPage);
+
+		while (!forwardFrontier.isEmpty() && !backwardFrontier.isEmpty() && !late.getAsBoolean()) {
+			boolean forwards = forwardFrontier.size() <= backwardFrontier.size();
+			Map<String, Step> near = forwards ? forward : backward;
+			Map<String, Step> far = forwards ? backward : forward;
+			Batcher<List<String>> edges = forwards ? linkBatcher : backlinkBatcher;
+			Queue<String> next = new ConcurrentLinkedQueue<>();
+			Queue<String> meetings = new ConcurrentLinkedQueue<>();
+
+			// the whole level is expanded before choosing where the sides meet, so the path is a shortest one
+			edges.forEach(forwards ? forwardFrontier : backwardFrontier, graphParallelism, late, (title, neighbours) -> {
+				if (neighbours == null) {
+					return;
+				}
+				int depth = near.get(title).depth + 1;
 				for (String s : neighbours) {
-					if (s.equals(stopPage)){
-						found = true;
-						break;
+					if (near.putIfAbsent(s, new Step(title, depth)) == null) {
+						next.add(s);
+						if (far.containsKey(s)) {
+							meetings.add(s);
+						}
 					}
-					queue.add(new Pair<>(s, parent));
-					tracing.add(new Pair<>(s, parent));
-					tracingKeys.add(s);
 				}
+			});
+			if (late.getAsBoolean()) {
+				break;
 			}
-		}
-		String currParent = tracing.get(tracing.size()-1).getValue();
-		if (!currParent.equals("0")) {
-			path.add(currParent);
-		}
 
-		while(!currParent.equals("0")){
-			int i = tracingKeys.indexOf(currParent);
-			currParent = tracing.get(i).getValue();
-			if(currParent.equals("0"))
-				break;
-			path.add(currParent);
+			String meeting = null;
+			for (String s : meetings) {
+				if (meeting == null
+						|| forward.get(s).depth + backward.get(s).depth
+							< forward.get(meeting).depth + backward.get(meeting).depth) {
+					meeting = s;
+				}
+			}
+			if (meeting != null) {
+				return joinPath(forward, backward, meeting);
+			}
+			if (forwards) {
+				forwardFrontier = new ArrayList<>(next);
+			} else {
+				backwardFrontier = new ArrayList<>(next);
+			}
 		}
+		return new ArrayList<>();
+	}
 
+	/**
+	 * @return the path from the start of forward through meeting to the start of backward
+	 */
+	private static List<String> joinPath(Map<String, Step> forward, Map<String, Step> backward, String meeting){
+		List<String> path = new ArrayList<>();
+		for (String s = meeting; s != null; s = forward.get(s).from) {
+			path.add(s);
+		}
 		Collections.reverse(path);
-		path.add(stopPage);
+		for (String s = backward.get(meeting).from; s != null; s = backward.get(s).from) {
+			path.add(s);
+		}
 		return path;
 	}
 
 	/**
-	 * Finds a list of pages that meet the structured query from the user
+	 * How a path search reached a page: the page it came from, or null for the page the
+	 * search started at, and the number of links between the two.
+	 */
+	private static final class Step {
+		private final String from;
+		private final int depth;
+
+		Step(String from, int depth) {
+			this.from = from;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * Finds a list of pages, authors or categories that meet the structured query from the user
 	 *
 	 * @param query String representing the structured query
-	 * @return a List of Strings containing the page titles meeting the
+	 * @return a List of Strings containing the items of the pages meeting the
 	 *         requirements from query
+	 * @throws IllegalArgumentException if query is not a valid structured query
 	 */
 	public List<String> executeQuery(String query){
-		return new ArrayList<String>();
+		request("executeQuery");
+		QueryPlan plan = queries.compile(query);
+		String normalized = plan.query().toString();
+		List<String> cached = results.get("executeQuery", normalized, 0, Integer.MAX_VALUE);
+		if (cached != null) {
+			return cached;
+		}
+		List<String> found = plan.execute(source);
+		results.put("executeQuery", normalized, 0, found, true);
+		return found;
+	}
+
+	/**
+	 * Forgets the remembered results of one request, so that it is next answered from Wikipedia.
+	 *
+	 * @param type the type of the request: simpleSearch, executeQuery or getConnectedPages
+	 * @param query the query of the request, or the starting page of getConnectedPages;
+	 *              results for every limit and number of hops are forgotten
+	 * @throws IllegalArgumentException if type is executeQuery and query is not a valid query
+	 */
+	public void invalidateResults(String type, String query){
+		if (type.equals("executeQuery")) {
+			query = queries.compile(query).query().toString();
+		}
+		results.invalidate(type, query);
+	}
+
+	/**
+	 * Forgets the remembered results of every request.
+	 */
+	public void invalidateResults(){
+		results.invalidateAll();
+	}
+
+	/**
+	 * Answers the questions of structured queries through wiki.
+	 */
+	private class WikiSource implements QuerySource {
+		@Override
+		public boolean exists(String title) {
+			return upstream(() -> wiki.exists(title));
+		}
+
+		@Override
+		public String author(String title) {
+			return upstream(() -> wiki.author(title));
+		}
+
+		@Override
+		public List<String> categories(String title) {
+			return upstream(() -> wiki.categories(title));
+		}
+
+		@Override
+		public List<String> members(String category) {
+			return upstream(() -> wiki.members(category));
+		}
+
+		@Override
+		public List<String> contributions(String user) {
+			return upstream(() -> wiki.contributions(user));
+		}
 	}
 
 }
@@ -1,16 +1,52 @@
 package cpen221.mp3;
 
 import cpen221.mp3.cache.Cache;
+import cpen221.mp3.cache.CacheSnapshot;
 import cpen221.mp3.cache.Cacheable;
+import cpen221.mp3.cache.LfuPolicy;
+import cpen221.mp3.cache.LruPolicy;
 import cpen221.mp3.cache.NoSuchObjectException;
+import cpen221.mp3.cache.SlabStore;
+import cpen221.mp3.cache.TinyLfuPolicy;
+import cpen221.mp3.query.Condition;
+import cpen221.mp3.query.Query;
+import cpen221.mp3.query.QueryEngine;
+import cpen221.mp3.query.QueryParser;
+import cpen221.mp3.query.QuerySource;
+import cpen221.mp3.server.WikiMediatorAsyncClient;
+import cpen221.mp3.server.WikiMediatorNioServer;
+import cpen221.mp3.server.WikiMediatorServer;
+import cpen221.mp3.wikimediator.InMemoryWiki;
+import cpen221.mp3.wikimediator.LinkGraph;
+import cpen221.mp3.wikimediator.OfflineGraph;
 import cpen221.mp3.wikimediator.WikiMediator;
 import fastily.jwiki.core.Wiki;
+import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -58,7 +94,7 @@ public class Tests {
 		Thread.sleep(2000); //items should be removed from cache
 
 		cache.put(f3);
-		System.out.println(cache.cache.keySet());
+		System.out.println(cache.ids());
 	}
 
 	@Test
@@ -76,6 +112,197 @@ public class Tests {
 		Assert.assertFalse(cache.update(f3));
 	}
 
+	@Test
+	public void cacheLeastRecentEvictionTest() throws NoSuchObjectException {
+		Cache<Francis> cache = new Cache<>(2, 12*3600);
+		Francis f1 = new Francis("1");
+		Francis f2 = new Francis("2");
+		Francis f3 = new Francis("3");
+
+		cache.put(f1);
+		cache.put(f2);
+		assertEquals(f1, cache.get("1"));
+		cache.put(f3);
+
+		assertEquals(f1, cache.get("1"));
+		assertEquals(f3, cache.get("3"));
+		Assert.assertFalse(cache.touch("2"));
+	}
+
+	@Test
+	public void cacheExpiryTest() throws InterruptedException {
+		Cache<Francis> cache = new Cache<>(3, 1);
+		cache.put(new Francis("1"));
+		cache.put(new Francis("2"));
+		Thread.sleep(1500);
+		cache.put(new Francis("3"));
+
+		assertEquals(1, cache.size());
+		Assert.assertFalse(cache.touch("1"));
+		Assert.assertTrue(cache.touch("3"));
+	}
+
+	@Test
+	public void cacheWeightTest() throws NoSuchObjectException {
+		Cache<Francis> cache = new Cache<>(10, 12*3600, f -> Long.parseLong(f.id()), new LruPolicy(), f -> {});
+
+		Assert.assertTrue(cache.put(new Francis("4")));
+		Assert.assertTrue(cache.put(new Francis("5")));
+		cache.get("4");
+		Assert.assertTrue(cache.put(new Francis("3")));
+
+		Assert.assertTrue(cache.touch("4"));
+		Assert.assertFalse(cache.touch("5"));
+		Assert.assertFalse(cache.put(new Francis("11")));
+	}
+
+	@Test
+	public void lfuPolicyTest(){
+		LfuPolicy policy = new LfuPolicy();
+		policy.onInsert("a", 1);
+		policy.onInsert("b", 1);
+		policy.onInsert("c", 1);
+		policy.onAccess("a");
+		policy.onAccess("a");
+		policy.onAccess("c");
+
+		assertEquals("b", policy.victim());
+		policy.onRemove("b");
+		assertEquals("c", policy.victim());
+	}
+
+	@Test
+	public void tinyLfuScanTest() throws NoSuchObjectException {
+		Cache<Francis> cache = new Cache<>(100, 12*3600, f -> 1, new TinyLfuPolicy(), f -> {});
+		for (int i = 0; i < 100; i++) {
+			cache.put(new Francis("hot" + i));
+		}
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 100; i++) {
+				cache.get("hot" + i);
+			}
+		}
+		for (int i = 0; i < 1000; i++) {
+			cache.put(new Francis("scan" + i));
+		}
+
+		int hits = 0;
+		for (int i = 0; i < 100; i++) {
+			if (cache.touch("hot" + i)) {
+				hits++;
+			}
+		}
+		assertTrue(hits >= 90);
+	}
+
+	@Test
+	public void tinyLfuAdmissionTest() throws NoSuchObjectException {
+		Cache<Francis> cache = new Cache<>(10, 12*3600, f -> 1, new TinyLfuPolicy(), f -> {});
+		for (int i = 0; i < 10; i++) {
+			cache.put(new Francis("hot" + i));
+		}
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 10; i++) {
+				cache.get("hot" + i);
+				cache.touch("hot" + i);
+			}
+		}
+
+		// a page seen once does not displace a popular one, but one asked for often does
+		Assert.assertFalse(cache.evictFor("cold"));
+		assertEquals(10, cache.entries().size());
+		int attempts = 1;
+		while (!cache.evictFor("cold")) {
+			attempts++;
+		}
+		assertTrue(attempts > 1 && attempts <= 15);
+		assertEquals(9, cache.entries().size());
+	}
+
+	@Test
+	public void cacheSnapshotTest() throws IOException, NoSuchObjectException {
+		Path file = Files.createTempFile("cache", ".snapshot");
+		Cache<Francis> cache = new Cache<>(3, 12*3600);
+		cache.put(new Francis("1"));
+		cache.put(new Francis("2"));
+		CacheSnapshot.save(cache, file, f -> f.id().getBytes(StandardCharsets.UTF_8));
+
+		Cache<Francis> restored = new Cache<>(3, 12*3600);
+		int loaded = CacheSnapshot.load(restored, file,
+				(id, bytes) -> new Francis(StandardCharsets.UTF_8.decode(bytes).toString()));
+		Files.delete(file);
+
+		assertEquals(2, loaded);
+		assertEquals("1", restored.get("1").id());
+		assertEquals("2", restored.get("2").id());
+	}
+
+	@Test
+	public void cacheSnapshotCorruptTest() throws IOException {
+		Path file = Files.createTempFile("cache", ".snapshot");
+		for (int length : new int[] {-5, 1 << 30}) {
+			CacheSnapshot.write(file, CacheSnapshot.CACHE_MAGIC, out -> {
+				out.writeLong(System.currentTimeMillis());
+				out.writeInt(length);
+				out.writeBytes("1");
+			});
+			try {
+				CacheSnapshot.load(new Cache<Francis>(3, 12*3600), file,
+						(id, bytes) -> new Francis(id));
+				Assert.fail("loaded a string of length " + length);
+			} catch (IOException e) {
+				assertTrue(e.getMessage().startsWith("corrupt snapshot"));
+			}
+		}
+		Files.delete(file);
+	}
+
+	@Test
+	public void cacheRemoveTest(){
+		Cache<Francis> cache = new Cache<>(3, 12*3600);
+		cache.put(new Francis("1"));
+		cache.put(new Francis("2"));
+
+		Assert.assertTrue(cache.remove("1"));
+		Assert.assertFalse(cache.remove("1"));
+		Assert.assertFalse(cache.touch("1"));
+		Assert.assertTrue(cache.touch("2"));
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		Assert.assertTrue(cache.put(new Francis("1")));
+	}
+
+	@Test
+	public void slabStoreTest(){
+		SlabStore store = new SlabStore(1024, 64, 512);
+		byte[] data = new byte[600];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+		SlabStore.Block block = store.write(data);
+		Assert.assertArrayEquals(data, block.read());
+		assertEquals(640, store.usedBytes());
+		Assert.assertFalse(store.fits(500));
+		Assert.assertNull(store.write(new byte[500]));
+
+		block.free();
+		assertEquals(0, store.usedBytes());
+		Assert.assertTrue(store.fits(1024));
+	}
+
+	@Test
+	public void simpleSearchResultCacheTest(){
+		WikiMediator myMediator = new WikiMediator();
+		List<String> ten = myMediator.simpleSearch("Canada", 10);
+
+		assertEquals(ten.subList(0, 5), myMediator.simpleSearch("Canada", 5));
+		assertEquals(ten, myMediator.simpleSearch("Canada", 10));
+		myMediator.invalidateResults("simpleSearch", "Canada");
+		assertEquals(ten, myMediator.simpleSearch("Canada", 10));
+	}
+
 	@Test
 	public void zeitgeistTest(){
 		List<String> results;
@@ -99,6 +326,68 @@ public class Tests {
 		Assert.assertEquals(results, myMediator.zeitgeist(5));
 	}
 
+	@Test
+	public void zeitgeistConcurrentTest() throws InterruptedException {
+		WikiMediator myMediator = new WikiMediator();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					myMediator.simpleSearch("Canada", 0);
+					if (i % 2 == 0) {
+						myMediator.simpleSearch("US", 0);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		myMediator.simpleSearch("Mexico", 0);
+
+		assertEquals(Arrays.asList("Canada", "US", "Mexico"), myMediator.zeitgeist(5));
+		assertEquals(Arrays.asList("Canada"), myMediator.zeitgeist(1));
+	}
+
+	@Test
+	public void zeitgeistBoundedTest(){
+		WikiMediator myMediator = new WikiMediator(WikiMediator.MAX_UPSTREAM, 3);
+		for (int i = 0; i < 100; i++) {
+			myMediator.simpleSearch("Canada", 0);
+			myMediator.simpleSearch("US", 0);
+			if (i % 4 == 0) {
+				myMediator.simpleSearch("Rare" + i, 0);
+			}
+		}
+
+		assertEquals(3, myMediator.zeitgeist(5).size());
+		assertEquals(Arrays.asList("Canada", "US"), myMediator.zeitgeist(2));
+	}
+
+	@Test
+	public void sketchedStatisticsTest(){
+		WikiMediator myMediator = new WikiMediator(WikiMediator.MAX_UPSTREAM, 0.01, 0.01);
+		for (int i = 0; i < 5; i++) {
+			myMediator.simpleSearch("Canada", 0);
+			if (i < 3) {
+				myMediator.simpleSearch("US", 0);
+			}
+		}
+		myMediator.simpleSearch("Mexico", 0);
+
+		assertEquals(Arrays.asList("Canada", "US", "Mexico"), myMediator.zeitgeist(5));
+		assertEquals(Arrays.asList("Canada", "US"), myMediator.trending(2));
+		assertEquals(3, myMediator.distinctQueries());
+
+		WikiMediator exact = new WikiMediator();
+		exact.simpleSearch("Canada", 0);
+		exact.simpleSearch("Canada", 0);
+		exact.simpleSearch("US", 0);
+		assertEquals(2, exact.distinctQueries());
+	}
+
 	@Test
 	public void testGetConnectedPages1() {
 		WikiMediator wikiMediator = new WikiMediator();
@@ -159,6 +448,18 @@ public class Tests {
 		System.out.println(summation.size());
 	}
 
+	@Test
+	public void testGetConnectedPagesLimit() {
+		WikiMediator wikiMediator = new WikiMediator();
+		List<String> all = wikiMediator.getConnectedPages("Joker", 1);
+		List<String> capped = wikiMediator.getConnectedPages("Joker", 2, 50, 60000);
+
+		assertTrue(all.size() > 50);
+		assertEquals(50, capped.size());
+		assertEquals("Joker", capped.get(0));
+		assertEquals(50, new HashSet<>(capped).size());
+	}
+
 	@Test
 	public void testTrending() throws InterruptedException {
 		WikiMediator wikiMediator = new WikiMediator();
@@ -201,6 +502,22 @@ public class Tests {
 		assertEquals(expected, wikiMediator.trending(4));
 	}
 
+	@Test
+	public void testTrendingCounts(){
+		WikiMediator wikiMediator = new WikiMediator();
+
+		for (int i = 0; i < 3; i++) {
+			wikiMediator.simpleSearch("Canada", 0);
+		}
+		wikiMediator.simpleSearch("US", 0);
+		wikiMediator.simpleSearch("Trophy", 0);
+		wikiMediator.simpleSearch("Trophy", 0);
+
+		assertEquals(Arrays.asList("Canada", "Trophy", "US"), wikiMediator.trending(5));
+		assertEquals(Arrays.asList("Canada", "Trophy"), wikiMediator.trending(2));
+		assertEquals(new ArrayList<>(), wikiMediator.trending(0));
+	}
+
 	@Test
 	public void testPeakLoad30s1(){
 		WikiMediator wikiMediator = new WikiMediator();
@@ -268,6 +585,24 @@ public class Tests {
 		assertEquals(2, count);
 	}
 
+	@Test
+	public void testPeakLoad30sAllRequests() throws IOException {
+		File dir = Files.createTempDirectory("mediator").toFile();
+		WikiMediator wikiMediator = new WikiMediator(dir);
+
+		for (int i = 0; i < 5; i++) {
+			wikiMediator.simpleSearch("Canada", 0);
+		}
+		wikiMediator.zeitgeist(5);
+		wikiMediator.trending(5);
+
+		assertEquals(7, wikiMediator.peakLoad30s());
+		assertEquals(8, wikiMediator.peakLoad30s());
+
+		wikiMediator.checkpoint();
+		assertEquals(9, new WikiMediator(dir).peakLoad30s());
+	}
+
 	@Test
 	public void testCache() throws NoSuchObjectException{
 		WikiMediator wikiMediator = new WikiMediator();
@@ -277,6 +612,50 @@ public class Tests {
 		wikiMediator.getPage("Canada");
 	}
 
+	@Test
+	public void getPageCoalescedTest() throws InterruptedException {
+		WikiMediator wikiMediator = new WikiMediator();
+		List<Thread> threads = new ArrayList<>();
+		List<String> texts = Collections.synchronizedList(new ArrayList<>());
+
+		for (int i = 0; i < 8; i++) {
+			threads.add(new Thread(() -> {
+				try {
+					texts.add(wikiMediator.getPage("Canada"));
+				} catch (NoSuchObjectException e) {
+					Assert.fail();
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertEquals(8, texts.size());
+		assertEquals(1, new HashSet<>(texts).size());
+		assertEquals(1, wikiMediator.upstreamFetches());
+	}
+
+	@Test
+	public void getPagesTest() throws NoSuchObjectException {
+		WikiMediator wikiMediator = new WikiMediator();
+		List<String> titles = new ArrayList<>();
+		titles.add("Canada");
+		titles.add("Barack Obama");
+		titles.add("Canada");
+
+		List<String> pages = wikiMediator.getPages(titles);
+
+		assertEquals(3, pages.size());
+		assertEquals(pages.get(0), pages.get(2));
+		assertEquals(2, wikiMediator.upstreamFetches());
+		assertEquals(pages.get(1), wikiMediator.getPage("Barack Obama"));
+		assertEquals(2, wikiMediator.upstreamFetches());
+	}
+
 	@Test
 	public void getPath2() {
 		WikiMediator wikiMediator = new WikiMediator();
@@ -322,15 +701,667 @@ public class Tests {
 	@Test
 	public void getPathTimeout(){
 		WikiMediator wikiMediator = new WikiMediator();
-		List<String> path = wikiMediator.getPath("Sathish", "Sausage");
+		List<String> path = wikiMediator.getPath("Sathish", "Sausage", 1);
 
 		assertEquals(new ArrayList(), path);
 	}
 
+	@Test
+	public void offlineGraphTest() throws IOException {
+		Path dir = Files.createTempDirectory("graph");
+		Path dump = dir.resolve("links.tsv");
+		Path graphFile = dir.resolve("links.graph");
+		Files.write(dump, ("# from\tto\n"
+				+ "A\tB\nB\tC\nC\tD\nA\tE\nE\tD\nD\tA\nFoo_bar\tA\n").getBytes(StandardCharsets.UTF_8));
+		OfflineGraph.build(dump, graphFile);
+		OfflineGraph graph = OfflineGraph.open(graphFile);
+		WikiMediator wikiMediator = new WikiMediator(graph);
+
+		assertEquals(6, graph.size());
+		assertEquals(7, graph.links());
+		assertEquals("Foo bar", graph.title(graph.id("Foo bar")));
+		assertEquals(-1, graph.id("Foo_bar"));
+
+		assertEquals(Arrays.asList("A", "E", "D"), wikiMediator.getPath("A", "D"));
+		assertEquals(Arrays.asList("Foo bar", "A", "B", "C"), wikiMediator.getPath("Foo bar", "C"));
+		assertEquals(new ArrayList<>(), wikiMediator.getPath("D", "Foo bar"));
+		assertEquals(new HashSet<>(Arrays.asList("A", "B", "E")),
+				new HashSet<>(wikiMediator.getConnectedPages("A", 1)));
+		assertEquals(5, wikiMediator.getConnectedPages("A", 3).size());
+		assertEquals(Arrays.asList("Nowhere"), wikiMediator.getConnectedPages("Nowhere", 2));
+	}
+
+	@Test
+	public void linkGraphTest() throws InterruptedException {
+		LinkGraph graph = new LinkGraph(1, 10);
+		graph.putLinks("A", Arrays.asList("B", "C"));
+		graph.putBacklinks("B", Arrays.asList("A"));
+
+		// each title is kept once, however many lists mention it
+		assertEquals(3, graph.size());
+		assertEquals(Arrays.asList("B", "C"), graph.links("A"));
+		assertEquals(Arrays.asList("A"), graph.backlinks("B"));
+		assertEquals(null, graph.links("B"));
+		assertEquals(null, graph.backlinks("A"));
+
+		// a full graph forgets its oldest lists, only as many as it must
+		graph.putLinks("D", Arrays.asList("E", "F", "G"));
+		graph.putLinks("H", Arrays.asList("I", "J", "K"));
+		assertEquals(8, graph.size());
+		assertEquals(null, graph.links("A"));
+		assertEquals(null, graph.backlinks("B"));
+		assertEquals(Arrays.asList("E", "F", "G"), graph.links("D"));
+		assertEquals(Arrays.asList("I", "J", "K"), graph.links("H"));
+
+		// links older than the ttl are unknown, and are the first to go
+		Thread.sleep(1100);
+		assertEquals(null, graph.links("D"));
+		graph.putLinks("L", Arrays.asList("M", "N", "O"));
+		assertEquals(4, graph.size());
+		assertEquals(Arrays.asList("M", "N", "O"), graph.links("L"));
+
+		// the lists kept through many evictions still name the right titles
+		LinkGraph full = new LinkGraph(3600, 100);
+		for (int i = 0; i < 500; i++) {
+			full.putLinks("P" + i, Arrays.asList("P" + (i + 1), "P" + (i * 7 % 500), "Q" + i));
+			assertTrue(full.size() <= 100);
+		}
+		for (int i = 490; i < 500; i++) {
+			assertEquals(Arrays.asList("P" + (i + 1), "P" + (i * 7 % 500), "Q" + i), full.links("P" + i));
+		}
+	}
+
+	@Test
+	public void inMemoryWikiTest() throws NoSuchObjectException {
+		InMemoryWiki wiki = new InMemoryWiki();
+		wiki.addPage("Canada", "text of Canada", "Ann", Arrays.asList("Category:Countries"));
+		wiki.addPage("Canada goose", "Honk", "Bob", Arrays.asList("Category:Birds"));
+		wiki.addPage("Mexico", "text of Mexico", "Ann", Arrays.asList("Category:Countries"));
+		wiki.addLink("Canada", "Mexico");
+		wiki.addLink("Mexico", "Canada goose");
+		WikiMediator wikiMediator = new WikiMediator(wiki, WikiMediator.MAX_UPSTREAM);
+
+		assertEquals(Arrays.asList("Canada", "Canada goose"), wikiMediator.simpleSearch("Canada", 5));
+		assertEquals("Honk", wikiMediator.getPage("Canada goose"));
+		assertEquals("", wikiMediator.getPage("Nowhere"));
+		assertEquals(Arrays.asList("Canada", "Mexico", "Canada goose"), wikiMediator.getPath("Canada", "Canada goose"));
+		assertEquals(new HashSet<>(Arrays.asList("Canada", "Mexico")),
+				new HashSet<>(wikiMediator.getConnectedPages("Canada", 1)));
+		assertEquals(Arrays.asList("Canada", "Mexico"),
+				wikiMediator.executeQuery("get page where category is 'Countries' asc"));
+		assertEquals(Arrays.asList("Ann"), wikiMediator.executeQuery("get author where category is 'Countries'"));
+	}
+
+	@Test
+	public void connectedPagesNearestFirstTest() {
+		InMemoryWiki wiki = new InMemoryWiki();
+		wiki.addLink("A", "B");
+		wiki.addLink("A", "C");
+		for (int i = 0; i < 50; i++) {
+			wiki.addLink("B", "B" + i);
+			wiki.addLink("C", "C" + i);
+		}
+		WikiMediator wikiMediator = new WikiMediator(wiki, WikiMediator.MAX_UPSTREAM);
+
+		// the limit stops the search part-way through the second level
+		List<String> connected = wikiMediator.getConnectedPages("A", 3, 10, Long.MAX_VALUE);
+		assertEquals(10, connected.size());
+		assertEquals("A", connected.get(0));
+		assertEquals(new HashSet<>(Arrays.asList("B", "C")), new HashSet<>(connected.subList(1, 3)));
+	}
+
+	@Test
+	public void syntheticWikiTest() {
+		InMemoryWiki wiki = InMemoryWiki.synthetic(1000, 4, 42, 0);
+		assertEquals(InMemoryWiki.synthetic(1000, 4, 42, 0).getLinksOnPage("Page 7"), wiki.getLinksOnPage("Page 7"));
+		assertEquals(4, wiki.getLinksOnPage("Page 7").size());
+		assertTrue(wiki.getLinksOnPage("Page 999").contains("Page 0"));
+
+		WikiMediator wikiMediator = new WikiMediator(wiki, WikiMediator.MAX_UPSTREAM);
+		List<String> path = wikiMediator.getPath("Page 0", "Page 500");
+		assertEquals("Page 0", path.get(0));
+		assertEquals("Page 500", path.get(path.size() - 1));
+		for (int i = 0; i + 1 < path.size(); i++) {
+			assertTrue(wiki.getLinksOnPage(path.get(i)).contains(path.get(i + 1)));
+		}
+
+		// a list of pages is fetched in one request, however slow the request
+		List<String> titles = new ArrayList<>();
+		for (int i = 0; i < WikiMediator.BATCH_SIZE; i++) {
+			titles.add("Page " + i);
+		}
+		wiki.setLatency(50);
+		long requests = wiki.requests();
+		long start = System.currentTimeMillis();
+		List<String> texts = wikiMediator.getPages(titles);
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		assertEquals(1, wiki.requests() - requests);
+		assertTrue(texts.get(3).startsWith("'''Page 3''' links to [[Page 4]]"));
+	}
+
+	@Test
+	public void serverPipelinedHalfCloseTest() throws IOException, InterruptedException {
+		// slow enough that the client has stopped sending long before the replies are ready
+		InMemoryWiki wiki = InMemoryWiki.synthetic(100, 2, 1, 100);
+		WikiMediatorServer server = new WikiMediatorServer(0, 4, 16,
+				new WikiMediator(wiki, WikiMediator.MAX_UPSTREAM));
+		Thread serving = new Thread(() -> {
+			try {
+				server.serve();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		serving.start();
+
+		int n = 8;
+		List<String> replies = new ArrayList<>();
+		try (Socket socket = new Socket("localhost", server.port())) {
+			OutputStream out = socket.getOutputStream();
+			for (int i = 0; i < n; i++) {
+				out.write(("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"query\": \"Page " + i + "\"}\n\n")
+						.getBytes(StandardCharsets.UTF_8));
+			}
+			out.flush();
+			socket.shutdownOutput();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				replies.add(line);
+			}
+		}
+
+		assertEquals(n, replies.size());
+		for (String reply : replies) {
+			assertTrue(reply.contains("\"status\":\"success\""));
+		}
+		assertTrue(server.shutdown(WikiMediatorServer.SHUTDOWN_TIMEOUT));
+		serving.join();
+	}
+
+	@Test
+	public void asyncClientTest() throws Exception {
+		InMemoryWiki wiki = InMemoryWiki.synthetic(100, 2, 1, 300);
+		WikiMediatorServer server = new WikiMediatorServer(0, 4, 16,
+				new WikiMediator(wiki, WikiMediator.MAX_UPSTREAM));
+		Thread serving = startServing(server::serve);
+		WikiMediatorAsyncClient client = new WikiMediatorAsyncClient("localhost", server.port());
+
+		// a slow request sent first is answered after a quick one sent later
+		CompletableFuture<JSONObject> slow = client.send(
+				new JSONObject().put("id", "slow").put("type", "getPage").put("query", "Page 1"));
+		CompletableFuture<JSONObject> quick = client.send(new JSONObject().put("id", "quick").put("type", "peakLoad30s"));
+		assertEquals("quick", quick.get(10, TimeUnit.SECONDS).getString("id"));
+		assertTrue(!slow.isDone());
+		assertEquals("slow", slow.get(10, TimeUnit.SECONDS).getString("id"));
+		assertTrue(slow.get().getString("response").startsWith("'''Page 1'''"));
+
+		// replies are matched up even when the caller reuses an id
+		CompletableFuture<JSONObject> first = client.send(
+				new JSONObject().put("id", "same").put("type", "getPage").put("query", "Page 2"));
+		CompletableFuture<JSONObject> second = client.send(
+				new JSONObject().put("id", "same").put("type", "getPage").put("query", "Page 3"));
+		assertEquals("same", first.get(10, TimeUnit.SECONDS).getString("id"));
+		assertEquals("same", second.get(10, TimeUnit.SECONDS).getString("id"));
+		assertTrue(first.get().getString("response").startsWith("'''Page 2'''"));
+		assertTrue(second.get().getString("response").startsWith("'''Page 3'''"));
+
+		// the futures of a batch are in the order of its requests
+		List<JSONObject> batch = new ArrayList<>();
+		for (int i = 10; i < 15; i++) {
+			batch.add(new JSONObject().put("id", i).put("type", "getPage").put("query", "Page " + i));
+		}
+		List<CompletableFuture<JSONObject>> replies = client.sendAll(batch);
+		assertEquals(5, replies.size());
+		for (int i = 0; i < replies.size(); i++) {
+			JSONObject reply = replies.get(i).get(10, TimeUnit.SECONDS);
+			assertEquals("success", reply.getString("status"));
+			assertEquals(10 + i, reply.getInt("id"));
+			assertTrue(reply.getString("response").startsWith("'''Page " + (10 + i) + "'''"));
+		}
+		assertEquals(0, client.inFlight());
+
+		client.close();
+		assertTrue(server.shutdown(WikiMediatorServer.SHUTDOWN_TIMEOUT));
+		serving.join();
+	}
+
+	@Test
+	public void asyncClientConnectionDropTest() throws Exception {
+		// a server that hangs up as soon as it has a request
+		try (ServerSocket fake = new ServerSocket(0)) {
+			Thread serving = new Thread(() -> {
+				try (Socket socket = fake.accept()) {
+					new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+				} catch (IOException e) {
+					// the client has closed the connection
+				}
+			});
+			serving.start();
+
+			WikiMediatorAsyncClient client = new WikiMediatorAsyncClient("localhost", fake.getLocalPort());
+			List<CompletableFuture<JSONObject>> replies = client.sendAll(Arrays.asList(
+					new JSONObject().put("id", 1).put("type", "peakLoad30s"),
+					new JSONObject().put("id", 2).put("type", "peakLoad30s")));
+			for (CompletableFuture<JSONObject> reply : replies) {
+				try {
+					reply.get(5, TimeUnit.SECONDS);
+					Assert.fail("a request in flight when the connection drops should fail");
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof IOException);
+				}
+			}
+			assertEquals(0, client.inFlight());
+
+			// and so does any request sent after
+			CompletableFuture<JSONObject> late = client.send(new JSONObject().put("id", 3).put("type", "peakLoad30s"));
+			assertTrue(late.isCompletedExceptionally());
+			client.close();
+			serving.join();
+		}
+	}
+
+	@Test
+	public void asyncClientUnmatchedReplyTest() throws Exception {
+		// a server that answers every frame as if it could not read it
+		try (ServerSocket fake = new ServerSocket(0)) {
+			Thread serving = new Thread(() -> {
+				try (Socket socket = fake.accept()) {
+					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+					in.readLine();
+					socket.getOutputStream().write("{\"id\":null,\"status\":\"failed\"}\n".getBytes(StandardCharsets.UTF_8));
+					in.readLine();
+				} catch (IOException e) {
+					// the client has closed the connection
+				}
+			});
+			serving.start();
+
+			WikiMediatorAsyncClient client = new WikiMediatorAsyncClient("localhost", fake.getLocalPort());
+			CompletableFuture<JSONObject> reply = client.send(new JSONObject().put("id", "a").put("type", "peakLoad30s"));
+			try {
+				reply.get(5, TimeUnit.SECONDS);
+				Assert.fail("an unmatched reply should fail the requests in flight");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+			assertEquals(0, client.inFlight());
+			client.close();
+			serving.join();
+		}
+	}
+
+	@Test
+	public void serverBusyTest() throws IOException, InterruptedException {
+		// two workers and two waiting requests, each taking long enough to keep them all full
+		InMemoryWiki wiki = InMemoryWiki.synthetic(100, 2, 1, 300);
+		WikiMediatorServer server = new WikiMediatorServer(0, 2, 2,
+				new WikiMediator(wiki, WikiMediator.MAX_UPSTREAM));
+		Thread serving = startServing(server::serve);
+
+		try (Socket socket = new Socket("localhost", server.port())) {
+			OutputStream out = socket.getOutputStream();
+			for (int i = 0; i < 4; i++) {
+				out.write(("{\"id\": \"" + i + "\", \"type\": \"simpleSearch\", \"query\": \"Page " + i
+						+ "\", \"limit\": 5}\n\n").getBytes(StandardCharsets.UTF_8));
+			}
+			out.write("{\"id\": \"overflow\", \"type\": \"peakLoad30s\"}\n\n".getBytes(StandardCharsets.UTF_8));
+			out.flush();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			JSONObject busy = new JSONObject(in.readLine());
+			assertEquals("busy", busy.getString("status"));
+			assertEquals("overflow", busy.getString("id"));
+			for (int i = 0; i < 4; i++) {
+				assertEquals("success", new JSONObject(in.readLine()).getString("status"));
+			}
+
+			// once the workers are free, requests are taken again
+			out.write("{\"id\": \"again\", \"type\": \"peakLoad30s\"}\n\n".getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			JSONObject again = new JSONObject(in.readLine());
+			assertEquals("success", again.getString("status"));
+			assertEquals("again", again.getString("id"));
+		}
+
+		assertTrue(server.shutdown(WikiMediatorServer.SHUTDOWN_TIMEOUT));
+		serving.join();
+	}
+
+	@Test
+	public void serverShutdownCheckpointTest() throws IOException, InterruptedException {
+		File dir = Files.createTempDirectory("mediator").toFile();
+		WikiMediatorServer server = new WikiMediatorServer(0, 2, 2, new WikiMediator(dir));
+		Thread serving = startServing(server::serve);
+
+		try (Socket socket = new Socket("localhost", server.port())) {
+			socket.getOutputStream().write("{\"id\": \"1\", \"type\": \"peakLoad30s\"}\n\n".getBytes(StandardCharsets.UTF_8));
+			socket.getOutputStream().flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			assertEquals(0, new JSONObject(in.readLine()).getInt("response"));
+		}
+		assertTrue(server.shutdown(WikiMediatorServer.SHUTDOWN_TIMEOUT));
+		serving.join();
+
+		// the request was saved by shutdown, and counts towards the peak load of the next mediator
+		assertEquals(1, new WikiMediator(dir).peakLoad30s());
+	}
+
+	@Test
+	public void virtualThreadServerTest() throws IOException, InterruptedException {
+		AtomicInteger searching = new AtomicInteger();
+		AtomicInteger mostSearching = new AtomicInteger();
+		InMemoryWiki wiki = new InMemoryWiki(100) {
+			@Override
+			public List<String> allPages(String prefix, int limit) {
+				mostSearching.accumulateAndGet(searching.incrementAndGet(), Math::max);
+				try {
+					return super.allPages(prefix, limit);
+				} finally {
+					searching.decrementAndGet();
+				}
+			}
+		};
+		for (int i = 0; i < 10; i++) {
+			wiki.addPage("Page " + i, "text of Page " + i, "Ann", Collections.emptyList());
+		}
+		int n = 2;
+		WikiMediatorServer server = WikiMediatorServer.withVirtualThreads(0, n, new WikiMediator(wiki, n));
+		Thread serving = startServing(server::serve);
+
+		// many more idle connections than requests may be made to the wiki at once
+		List<Socket> sockets = new ArrayList<>();
+		try {
+			for (int i = 0; i < 100; i++) {
+				sockets.add(new Socket("localhost", server.port()));
+			}
+			Thread.sleep(100);
+
+			// every connection is still served, while the searches wait for one another
+			for (int i = 0; i < sockets.size(); i++) {
+				String request = i % 10 == 0
+						? "{\"id\": " + i + ", \"type\": \"simpleSearch\", \"query\": \"Page " + (i / 10) + "\", \"limit\": 5}\n\n"
+						: "{\"id\": " + i + ", \"type\": \"peakLoad30s\"}\n\n";
+				sockets.get(i).getOutputStream().write(request.getBytes(StandardCharsets.UTF_8));
+				sockets.get(i).getOutputStream().flush();
+			}
+			for (int i = 0; i < sockets.size(); i++) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(sockets.get(i).getInputStream(), StandardCharsets.UTF_8));
+				JSONObject reply = new JSONObject(in.readLine());
+				assertEquals("success", reply.getString("status"));
+				assertEquals(i, reply.getInt("id"));
+			}
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+
+		assertTrue(mostSearching.get() > 0);
+		assertTrue(mostSearching.get() <= n);
+		assertEquals(10, wiki.requests());
+		assertTrue(server.shutdown(WikiMediatorServer.SHUTDOWN_TIMEOUT));
+		serving.join();
+	}
+
+	@Test
+	public void serverBatchAdmissionTest() throws Exception {
+		InMemoryWiki wiki = InMemoryWiki.synthetic(100, 2, 1, 20);
+		WikiMediatorNioServer server = new WikiMediatorNioServer(0, 4, 16,
+				new WikiMediator(wiki, WikiMediator.MAX_UPSTREAM));
+		Thread serving = startServing(server::serve);
+		WikiMediatorAsyncClient client = new WikiMediatorAsyncClient("localhost", server.port());
+
+		// a batch that fits in the workers and their queue is taken whole
+		List<JSONObject> fits = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			fits.add(new JSONObject().put("id", i).put("type", "getPage").put("query", "Page " + i));
+		}
+		for (CompletableFuture<JSONObject> reply : client.sendAll(fits)) {
+			assertEquals("success", reply.get(10, TimeUnit.SECONDS).getString("status"));
+		}
+
+		// and one that does not is turned away whole, never answered in part
+		List<JSONObject> tooLarge = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			tooLarge.add(new JSONObject().put("id", i).put("type", "getPage").put("query", "Page " + i));
+		}
+		List<CompletableFuture<JSONObject>> replies = client.sendAll(tooLarge);
+		for (int i = 0; i < replies.size(); i++) {
+			JSONObject reply = replies.get(i).get(10, TimeUnit.SECONDS);
+			assertEquals("busy", reply.getString("status"));
+			assertEquals(i, reply.getInt("id"));
+		}
+
+		client.close();
+		assertTrue(server.shutdown(WikiMediatorServer.SHUTDOWN_TIMEOUT));
+		serving.join();
+	}
+
+	@Test
+	public void nioServerPipelinedTest() throws IOException, InterruptedException {
+		InMemoryWiki wiki = InMemoryWiki.synthetic(100, 2, 1, 50);
+		WikiMediatorNioServer server = new WikiMediatorNioServer(0, 4, 16,
+				new WikiMediator(wiki, WikiMediator.MAX_UPSTREAM));
+		Thread serving = startServing(server::serve);
+
+		Set<String> ids = new HashSet<>();
+		try (Socket socket = new Socket("localhost", server.port())) {
+			OutputStream out = socket.getOutputStream();
+			for (int i = 0; i < 6; i++) {
+				out.write(("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"query\": \"Page " + i + "\"}\r\n\r\n")
+						.getBytes(StandardCharsets.UTF_8));
+			}
+			// a batch, split over two lines and written in pieces
+			byte[] batch = ("[{\"id\": \"b0\", \"type\": \"getPage\", \"query\": \"Page 10\"},\n"
+					+ "{\"id\": \"b1\", \"type\": \"peakLoad30s\"}]\n\n").getBytes(StandardCharsets.UTF_8);
+			out.write(batch, 0, 20);
+			out.flush();
+			Thread.sleep(20);
+			out.write(batch, 20, batch.length - 20);
+			out.flush();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			for (int i = 0; i < 8; i++) {
+				JSONObject reply = new JSONObject(in.readLine());
+				assertEquals("success", reply.getString("status"));
+				ids.add(reply.getString("id"));
+			}
+		}
+
+		assertEquals(new HashSet<>(Arrays.asList("0", "1", "2", "3", "4", "5", "b0", "b1")), ids);
+		assertTrue(server.shutdown(WikiMediatorServer.SHUTDOWN_TIMEOUT));
+		serving.join();
+	}
+
+	@Test
+	public void nioServerRequestTooLargeTest() throws IOException, InterruptedException {
+		WikiMediatorNioServer server = new WikiMediatorNioServer(0, 4, 16,
+				new WikiMediator(new InMemoryWiki(), WikiMediator.MAX_UPSTREAM));
+		Thread serving = startServing(server::serve);
+
+		try (Socket socket = new Socket("localhost", server.port())) {
+			// one byte more than a request may hold, so that the server has read all of it
+			byte[] request = new byte[WikiMediatorNioServer.MAX_REQUEST + 1];
+			Arrays.fill(request, (byte) 'x');
+			socket.getOutputStream().write(request);
+			socket.getOutputStream().flush();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			JSONObject reply = new JSONObject(in.readLine());
+			assertEquals("failed", reply.getString("status"));
+			assertEquals("request too large", reply.getString("response"));
+			assertEquals(null, in.readLine());
+		}
+
+		assertTrue(server.shutdown(WikiMediatorServer.SHUTDOWN_TIMEOUT));
+		serving.join();
+	}
+
+	@Test
+	public void nioServerShutdownDrainsTest() throws IOException, InterruptedException {
+		InMemoryWiki wiki = InMemoryWiki.synthetic(100, 2, 1, 300);
+		WikiMediatorNioServer server = new WikiMediatorNioServer(0, 4, 16,
+				new WikiMediator(wiki, WikiMediator.MAX_UPSTREAM));
+		Thread serving = startServing(server::serve);
+
+		try (Socket socket = new Socket("localhost", server.port())) {
+			for (int i = 0; i < 4; i++) {
+				socket.getOutputStream().write(("{\"id\": " + i + ", \"type\": \"simpleSearch\", \"query\": \"Page " + i
+						+ "\", \"limit\": 5}\n\n").getBytes(StandardCharsets.UTF_8));
+			}
+			socket.getOutputStream().flush();
+			// wait until every search is being made, then shut down while they are
+			while (wiki.requests() < 4) {
+				Thread.sleep(5);
+			}
+			assertTrue(server.shutdown(WikiMediatorServer.SHUTDOWN_TIMEOUT));
+			serving.join();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			for (int i = 0; i < 4; i++) {
+				assertEquals("success", new JSONObject(in.readLine()).getString("status"));
+			}
+			assertEquals(null, in.readLine());
+		}
+	}
+
+	@Test
+	public void queryParserTest() {
+		Query query = QueryParser.parse(
+				"get page where (category is 'A' or (title is 'B' and author is 'C')) asc");
+		assertEquals(Query.Item.PAGE, query.item());
+		assertEquals(Query.Order.ASC, query.order());
+		assertEquals(new Condition.Or(
+				new Condition.Simple(Condition.Field.CATEGORY, "A"),
+				new Condition.And(
+						new Condition.Simple(Condition.Field.TITLE, "B"),
+						new Condition.Simple(Condition.Field.AUTHOR, "C"))), query.condition());
+
+		// and binds more tightly than or
+		assertEquals(QueryParser.parse("get author where (title is 'X' or (title is 'Y' and category is 'Z'))"),
+				QueryParser.parse("get author where title is 'X' or title is 'Y' and category is 'Z'"));
+
+		// a quote in a string is written twice, and written back the same way
+		Query quoted = QueryParser.parse("get page where title is 'Ender''s Game' or category is ''''");
+		assertEquals(new Condition.Or(
+				new Condition.Simple(Condition.Field.TITLE, "Ender's Game"),
+				new Condition.Simple(Condition.Field.CATEGORY, "'")), quoted.condition());
+		assertEquals(quoted, QueryParser.parse(quoted.toString()));
+		Query tricky = new Query(Query.Item.PAGE,
+				new Condition.Simple(Condition.Field.TITLE, "A' or title is 'B"), Query.Order.UNSORTED);
+		assertEquals(tricky, QueryParser.parse(tricky.toString()));
+
+		for (String bad : Arrays.asList("", "get page", "get pages where title is 'A'",
+				"get page where title is A", "get page where (title is 'A'", "get page where title is 'A' up",
+				"get page where title is 'A''")) {
+			try {
+				QueryParser.parse(bad);
+				Assert.fail(bad);
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage().startsWith("bad query"));
+			}
+		}
+	}
+
+	@Test
+	public void queryEngineTest() {
+		Map<String, String> authors = new HashMap<>();
+		authors.put("Barack Obama", "Ann");
+		authors.put("Joe Biden", "Bob");
+		authors.put("Hillary Clinton", "Ann");
+		Map<String, List<String>> categories = new HashMap<>();
+		categories.put("Barack Obama", Arrays.asList("Category:Presidents", "Category:Lawyers"));
+		categories.put("Joe Biden", Arrays.asList("Category:Presidents"));
+		categories.put("Hillary Clinton", Arrays.asList("Category:Lawyers"));
+		List<String> calls = new ArrayList<>();
+		QuerySource source = new QuerySource() {
+			public boolean exists(String title) {
+				calls.add("exists " + title);
+				return authors.containsKey(title);
+			}
+
+			public String author(String title) {
+				calls.add("author " + title);
+				return authors.get(title);
+			}
+
+			public List<String> categories(String title) {
+				calls.add("categories " + title);
+				return categories.getOrDefault(title, Collections.emptyList());
+			}
+
+			public List<String> members(String category) {
+				calls.add("members " + category);
+				List<String> members = new ArrayList<>();
+				categories.forEach((page, cats) -> { if (cats.contains(category)) members.add(page); });
+				return members;
+			}
+
+			public List<String> contributions(String user) {
+				calls.add("contributions " + user);
+				return new ArrayList<>(authors.keySet());
+			}
+		};
+		QueryEngine engine = new QueryEngine(source);
+
+		assertEquals(Arrays.asList("Barack Obama", "Joe Biden"),
+				engine.execute("get page where category is 'Presidents' asc"));
+		assertEquals(Arrays.asList("Joe Biden", "Barack Obama"),
+				engine.execute("get page where category is 'Presidents' desc"));
+		assertEquals(Arrays.asList("Ann"),
+				engine.execute("get author where category is 'Lawyers' and author is 'Ann'"));
+		assertEquals(Arrays.asList("Category:Lawyers", "Category:Presidents"),
+				engine.execute("get category where author is 'Ann' asc"));
+		assertEquals(Arrays.asList("Barack Obama", "Joe Biden"),
+				engine.execute("get page where title is 'Joe Biden' or (category is 'Lawyers' and author is 'Ann'"
+						+ " and category is 'Presidents') asc"));
+		assertEquals(new ArrayList<>(), engine.execute("get page where title is 'Nobody' and category is 'Lawyers'"));
+
+		// the title is the only page fetched; the author is asked only about it
+		calls.clear();
+		assertEquals(Arrays.asList("Joe Biden"),
+				engine.execute("get page where author is 'Bob' and title is 'Joe Biden'"));
+		assertEquals(Arrays.asList("exists Joe Biden", "author Joe Biden"), calls);
+
+		assertTrue(engine.compile("get page where title is 'A'") == engine.compile("  get page where title is 'A' "));
+	}
+
+	@Test
+	public void getPathBidirectional() {
+		WikiMediator wikiMediator = new WikiMediator();
+		List<String> path = wikiMediator.getPath("Piazza (web service)", "32-bit", 60000);
+
+		assertEquals(3, path.size());
+		assertEquals("Piazza (web service)", path.get(0));
+		assertEquals("32-bit", path.get(2));
+	}
+
 	@Test
 	public void testGetLinks(){
 		Wiki wiki = new Wiki("en.wikipedia.org");
 		System.out.println(wiki.getLinksOnPage("Android (operating system)"));
 	}
 
+	/* the serve() of either kind of server */
+	private interface Serving {
+		void serve() throws IOException;
+	}
+
+	/**
+	 * Runs a server on its own thread, which ends once the server is shut down.
+	 */
+	private static Thread startServing(Serving server) {
+		Thread serving = new Thread(() -> {
+			try {
+				server.serve();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		serving.start();
+		return serving;
+	}
+
 }